@@ -0,0 +1,167 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.collection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.hadoop.runtime.HadoopQueryContext;
+import org.brackit.xquery.ErrorCode;
+import org.brackit.xquery.QueryContext;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.util.csv.CSVFileIter;
+import org.brackit.xquery.xdm.DocumentException;
+import org.brackit.xquery.xdm.Item;
+import org.brackit.xquery.xdm.Iter;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.record.ArrayRecord;
+import org.brackit.xquery.xdm.sequence.BaseIter;
+import org.brackit.xquery.xdm.sequence.LazySequence;
+import org.brackit.xquery.xdm.type.ItemType;
+
+/**
+ * A CSV collection stored in a single file which is small enough to be
+ * replicated to all tasks. When
+ * it is scanned by the build side of a map-side (fragment-replicate) join, the
+ * collection call is marked as "replicated". The file is then shipped through
+ * the distributed cache and read from the local copy, instead of being used
+ * as a map input. Unmarked scans behave like a regular {@link HadoopCSVCollection}.
+ * 
+ */
+public class DistrCacheCollection extends HadoopCSVCollection {
+
+	private static final long serialVersionUID = 1L;
+	
+	public DistrCacheCollection(String name, String location, String options, ItemType type)
+			throws QueryException
+	{
+		super(name, location, options, type);
+	}
+
+	private static boolean isReplicated(Map<String, Serializable> properties)
+	{
+		return properties != null && Boolean.TRUE.equals(properties.get("replicated"));
+	}
+	
+	@Override
+	protected Sequence getSequence(QueryContext ctx, final CSVFileIter csv, Map<String, Serializable> properties)
+			throws DocumentException
+	{
+		if (!isReplicated(properties)) {
+			return super.getSequence(ctx, csv, properties);
+		}
+		
+		HadoopQueryContext hctx = (HadoopQueryContext) ctx;
+		final Configuration conf = hctx.getOutputContext().getConfiguration();
+		
+		return new LazySequence() {
+
+			public Iter iterate()
+			{
+				return new BaseIter() {
+					
+					BufferedReader reader;
+
+					public Item next() throws QueryException
+					{
+						try {
+							if (reader == null) {
+								reader = open(conf);
+							}
+							String line;
+							while ((line = reader.readLine()) != null) {
+								Atomic[] fields = csv.split(line);
+								if (fields != null) {
+									return new ArrayRecord(csv.getUseKeys(), fields);
+								}
+							}
+							return null;
+						}
+						catch (IOException e) {
+							throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+						}
+					}
+
+					public void close()
+					{
+						try {
+							if (reader != null) {
+								reader.close();
+							}
+						}
+						catch (IOException e) {
+						}
+					}
+				};
+			}
+		};
+	}
+	
+	private BufferedReader open(Configuration conf) throws IOException
+	{
+		Path path = new Path(getLocation());
+		FileSystem fs = path.getFileSystem(conf);
+		
+		// prefer the localized copy of the distributed cache, which is listed
+		// at the same position as the file we added (file names need not be
+		// unique across collections)
+		URI[] files = DistributedCache.getCacheFiles(conf);
+		Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+		if (files != null && cached != null && files.length == cached.length) {
+			for (int i = 0; i < files.length; i++) {
+				if (new Path(files[i]).equals(path)) {
+					path = cached[i];
+					fs = FileSystem.getLocal(conf);
+					break;
+				}
+			}
+		}
+		return new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+	}
+
+	@Override
+	public void initHadoop(XQueryJobConf jobConf, Map<String, Serializable> properties) throws IOException
+	{
+		if (!isReplicated(properties)) {
+			super.initHadoop(jobConf, properties);
+			return;
+		}
+		DistributedCache.addCacheFile(new Path(getLocation()).toUri(), jobConf);
+	}
+
+}
@@ -27,11 +27,19 @@
  */
 package org.brackit.hadoop.collection;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.MapContext;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
@@ -62,26 +70,72 @@ public class HadoopCSVCollection extends CSVCollection implements HadoopCollecti
 		super(name, location, options, type);
 	}
 
+	public QNm[] getFieldNames()
+	{
+		return rtype.getKeys();
+	}
+
+	/**
+	 * Parses up to the given number of records from the beginning of the
+	 * collection files.
+	 */
+	public List<Atomic[]> sample(Configuration conf, int maxRecords) throws IOException
+	{
+		CSVFileIter csv = new CSVFileIter(null, rtype.getKeys(), rtype.getTypes(), null, null, false, delim);
+		List<Atomic[]> records = new ArrayList<Atomic[]>();
+		Path location = new Path(getLocation());
+		FileSystem fs = location.getFileSystem(conf);
+		FileStatus[] files = fs.globStatus(location);
+		if (files != null && files.length == 1 && files[0].isDir()) {
+			files = fs.listStatus(files[0].getPath());
+		}
+		for (int i = 0; files != null && i < files.length && records.size() < maxRecords; i++) {
+			String name = files[i].getPath().getName();
+			if (files[i].isDir() || name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(files[i].getPath()), "UTF-8"));
+			try {
+				String line;
+				while (records.size() < maxRecords && (line = reader.readLine()) != null) {
+					Atomic[] fields = csv.split(line);
+					if (fields != null) {
+						records.add(fields);
+					}
+				}
+			}
+			catch (QueryException e) {
+				throw new IOException(e);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
 	public Sequence getItems(QueryContext ctx) throws DocumentException
 	{
 		CSVFileIter csv = new CSVFileIter(null, rtype.getKeys(), rtype.getTypes(), null, null, false, delim);
-		return getSequence(ctx, csv);
+		return getSequence(ctx, csv, null);
 	}
 
 	public Sequence getItems(QueryContext ctx, Map<String, Serializable> properties)
 			throws DocumentException
 	{
-		if (properties.get("fields") == null) {
-			return getItems(ctx);
+		if (properties.get("fields") == null && properties.get("predicates") == null) {
+			CSVFileIter csv = new CSVFileIter(null, rtype.getKeys(), rtype.getTypes(), null, null, false, delim);
+			return getSequence(ctx, csv, properties);
 		}
 		
 		@SuppressWarnings("unchecked")
 		Collection<QNm> fields = (Collection<QNm>) properties.get("fields");
 		
+		// without projection all fields are used
 		QNm[] keys = rtype.getKeys();
 		int[] assign = new int[keys.length];
 		for (int i = 0, j = 0; i < keys.length; i++) {
-			assign[i] = fields.contains(keys[i]) ? j++ : -1;			
+			assign[i] = (fields == null || fields.contains(keys[i])) ? j++ : -1;			
 		}
 		
 		@SuppressWarnings("unchecked")
@@ -99,10 +153,11 @@ public class HadoopCSVCollection extends CSVCollection implements HadoopCollecti
 		}
 		
 		CSVFileIter csv = new CSVFileIter(null, rtype.getKeys(), rtype.getTypes(), assign, predArray, false, delim);
-		return getSequence(ctx, csv);		
+		return getSequence(ctx, csv, properties);		
 	}
 
-	private Sequence getSequence(QueryContext ctx, final CSVFileIter csv)
+	protected Sequence getSequence(QueryContext ctx, final CSVFileIter csv, Map<String, Serializable> properties)
+			throws DocumentException
 	{
 		HadoopQueryContext hctx = (HadoopQueryContext) ctx;
 		final MapContext<?,?,?,?> context = hctx.getMapContext();
@@ -34,6 +34,10 @@ import org.apache.hadoop.conf.Configured;
 import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.compiler.AST;
 import org.brackit.xquery.compiler.XQExt;
+import org.brackit.xquery.xdm.Type;
+import org.brackit.xquery.xdm.atomic.QNm;
+import org.brackit.xquery.xdm.type.AtomicType;
+import org.brackit.xquery.xdm.type.ItemType;
 import org.brackit.xquery.xdm.type.SequenceType;
 
 public abstract class AbstractSerialization extends Configured {
@@ -41,6 +45,17 @@ public abstract class AbstractSerialization extends Configured {
 	protected boolean isMultiMap = false;
 	protected List<SequenceType>[] types;
 	protected List<Integer>[] keyIndexes;
+	protected boolean[][] keyDesc;
+	protected boolean[][] keyLeast;
+	protected boolean[][] skipped;
+	// compiled per tag: codecs of the columns written (null if skipped)
+	// and the atomic types of the key columns
+	protected ColumnCodec[][] codecs;
+	protected Type[][] keyTypes;
+	// field names of the record collections of the query
+	private List<QNm[]> recordSchemas;
+	// frequent strings of the query (see KeyCodec)
+	protected StringDictionary dictionary;
 	
 	@SuppressWarnings("unchecked")
 	protected void walkAst(AST node, boolean reading)
@@ -56,8 +71,7 @@ public abstract class AbstractSerialization extends Configured {
 			if (len == 1 && node.checkProperty("isJoin")) {
 				len = 2;
 			}
-			types = new List[len];
-			keyIndexes = new List[len];
+			allocate(len);
 			
 			// we need to know the types of the tuples being read/written
 			// if we are reading, the task must be either an id-mapper or any kind of reducer
@@ -65,6 +79,7 @@ public abstract class AbstractSerialization extends Configured {
 			//   if it's a reducer, the types are in the PhaseIn parent
 			// if we are writing, the task must be a normal non-final mapper or a reducer
 			//   if it's a normal mapper, types are in the PhaseOut node at the tag child index of the shuffle
+			//   (also for map-output written by a combiner during the reduce-side merge)
 			//	 if it's a mid reducer, types are in the PhaseOut in the root of the AST
 			
 			if (reading) {
@@ -90,7 +105,7 @@ public abstract class AbstractSerialization extends Configured {
 				}
 			}
 			else {
-				if (isMapper()) {
+				if (writesMapOutput()) {
 					if (node.getChildCount() > 0) {
 						for (int i = 0; i < node.getChildCount(); i++) {
 							extractTypesAndIndexes(node.getChild(i), i);
@@ -118,6 +133,28 @@ public abstract class AbstractSerialization extends Configured {
 				}
 			}
 		}
+		else if (node.getType() == XQExt.MergeJoin) {
+			// map-only join of two intermediate outputs: the types of the files read
+			// are in the inputs, the types of the output in the PhaseOut root (if any)
+			int len = reading ? node.getChildCount() : 1;
+			allocate(len);
+			
+			if (reading) {
+				for (int i = 0; i < node.getChildCount(); i++) {
+					extractTypesAndIndexes(node.getChild(i), i);
+				}
+			}
+			else {
+				AST root = node;
+				while (root.getParent() != null) {
+					root = root.getParent();
+				}
+				if (root.getType() == XQExt.PhaseOut) {
+					extractTypesAndIndexes(root, 0);
+					isMultiMap = root.checkProperty("isJoin");
+				}
+			}
+		}
 		else if (node.getChildCount() > 0) {
 			walkAst(node.getLastChild(), reading);
 		}
@@ -125,8 +162,28 @@ public abstract class AbstractSerialization extends Configured {
 		// but then SequenceFiles, and thus this class, are not used at all
 	}
 	
+	@SuppressWarnings("unchecked")
+	private void allocate(int len)
+	{
+		types = new List[len];
+		keyIndexes = new List[len];
+		keyDesc = new boolean[len][];
+		keyLeast = new boolean[len][];
+		skipped = new boolean[len][];
+		codecs = new ColumnCodec[len][];
+		keyTypes = new Type[len][];
+		recordSchemas = (getConf() != null) ? XQueryJobConf.getRecordSchemas(getConf()) : null;
+		dictionary = (getConf() != null) ? XQueryJobConf.getStringDictionary(getConf()) : null;
+	}
+	
 	protected boolean isMapper()
 	{
+		// set by Hadoop in task configurations and by tasks run on the client (e.g. sampling)
+		String isMap = (getConf() != null) ? getConf().get("mapred.task.is.map") : null;
+		if (isMap != null) {
+			return Boolean.parseBoolean(isMap);
+		}
+		
 		StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
 		for (StackTraceElement ste : stackTrace) {
 			if (ste.getClassName().equals("org.apache.hadoop.mapred.MapTask")) {
@@ -136,6 +193,25 @@ public abstract class AbstractSerialization extends Configured {
 		return false;
 	}
 	
+	/**
+	 * Map-output is written by mappers and, in reducers, by the combiner when
+	 * merging fetched map outputs to intermediate (IFile) segments.
+	 */
+	protected boolean writesMapOutput()
+	{
+		if (isMapper()) {
+			return true;
+		}
+		
+		StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+		for (StackTraceElement ste : stackTrace) {
+			if (ste.getClassName().equals("org.apache.hadoop.mapred.IFile$Writer")) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	protected List<SequenceType> getTypes(int tag)
 	{
 		if (types == null) {
@@ -164,6 +240,49 @@ public abstract class AbstractSerialization extends Configured {
 			List<List<SequenceType>> typesMap = (List<List<SequenceType>>) node.getProperty("typesMap");
 			types[pos] = typesMap.get(pos);
 		}
+		
+		// sort direction and empty order of the key columns (defaults: ascending, empty least)
+		int keyLen = keyIndexes[pos].size();
+		keyDesc[pos] = booleanArray((List<Boolean>) node.getProperty("keyDesc"), keyLen, false);
+		keyLeast[pos] = booleanArray((List<Boolean>) node.getProperty("keyLeast"), keyLen, true);
+		
+		// columns which are not written: keys (written with the grouping key)
+		// and dead columns (not referenced after the shuffle)
+		List<Integer> deadIndexes = (List<Integer>) node.getProperty("deadIndexes");
+		if (deadIndexes == null) {
+			List<List<Integer>> deadIndexesMap = (List<List<Integer>>) node.getProperty("deadIndexesMap");
+			deadIndexes = (deadIndexesMap != null) ? deadIndexesMap.get(pos) : null;
+		}
+		skipped[pos] = new boolean[types[pos].size()];
+		for (Integer i : keyIndexes[pos]) {
+			skipped[pos][i] = true;
+		}
+		if (deadIndexes != null) {
+			for (Integer i : deadIndexes) {
+				skipped[pos][i] = true;
+			}
+		}
+		
+		codecs[pos] = new ColumnCodec[types[pos].size()];
+		for (int i = 0; i < codecs[pos].length; i++) {
+			if (!skipped[pos][i]) {
+				codecs[pos][i] = ColumnCodec.forType(types[pos].get(i), recordSchemas, dictionary);
+			}
+		}
+		keyTypes[pos] = new Type[keyLen];
+		for (int i = 0; i < keyLen; i++) {
+			ItemType itemType = types[pos].get(keyIndexes[pos].get(i)).getItemType();
+			keyTypes[pos][i] = (itemType instanceof AtomicType) ? ((AtomicType) itemType).getType() : null;
+		}
+	}
+	
+	private boolean[] booleanArray(List<Boolean> list, int len, boolean defaultValue)
+	{
+		boolean[] result = new boolean[len];
+		for (int i = 0; i < len; i++) {
+			result[i] = (list != null && i < list.size()) ? list.get(i) : defaultValue;
+		}
+		return result;
 	}
 	
 	protected int[] intArray(List<Integer> list)
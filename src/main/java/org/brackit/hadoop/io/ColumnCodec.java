@@ -0,0 +1,373 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.util.io.XDMInputStream;
+import org.brackit.xquery.util.io.XDMOutputStream;
+import org.brackit.xquery.xdm.Record;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.Type;
+import org.brackit.xquery.xdm.atomic.Bool;
+import org.brackit.xquery.xdm.atomic.Dbl;
+import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Int64;
+import org.brackit.xquery.xdm.atomic.QNm;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.type.AtomicType;
+import org.brackit.xquery.xdm.type.Cardinality;
+import org.brackit.xquery.xdm.type.ItemType;
+import org.brackit.xquery.xdm.type.SequenceType;
+
+/**
+ * Serialization of a single tuple column, chosen once per column from its
+ * static type (see {@link AbstractSerialization}).
+ * 
+ * Columns of at most one integer, double or boolean are written with a
+ * marker byte followed by the value. Integers are zigzag-encoded varints, so
+ * that small keys of either sign take one or two bytes, doubles and booleans
+ * have a fixed width. Values whose runtime class differs from the one
+ * expected are escaped to the XDM serialization, which is used for all other
+ * columns. Records in such columns are written without their field names if
+ * they match one of the record schemas of the query (see {@link RecordCodec}).
+ * Given a {@link StringDictionary}, strings found in it are written as their
+ * one-byte position, others with their length and UTF-8 bytes.
+ */
+public abstract class ColumnCodec {
+	
+	private static final int EMPTY = 0;
+	private static final int GENERIC = 1;
+	private static final int FIXED = 2;
+	private static final int VARINT = 3;
+	private static final int VARLONG = 4;
+	static final int RECORD = 5;
+	static final int STRING = 6;
+	static final int DICT = 7;
+	
+	protected final SequenceType type;
+	
+	private ColumnCodec(SequenceType type)
+	{
+		this.type = type;
+	}
+	
+	public abstract void write(XDMOutputStream out, Sequence s) throws IOException, QueryException;
+	
+	public abstract Sequence read(XDMInputStream in) throws IOException, QueryException;
+	
+	public static ColumnCodec forType(SequenceType type, List<QNm[]> recordSchemas, StringDictionary dict)
+	{
+		ItemType itemType = type.getItemType();
+		Cardinality card = type.getCardinality();
+		if (itemType instanceof AtomicType && (card == Cardinality.One || card == Cardinality.ZeroOrOne)) {
+			Type atomicType = ((AtomicType) itemType).getType();
+			if (atomicType.instanceOf(Type.INR)) {
+				return new IntegerCodec(type);
+			}
+			if (atomicType.instanceOf(Type.DBL)) {
+				return new DoubleCodec(type);
+			}
+			if (atomicType.instanceOf(Type.BOOL)) {
+				return new BooleanCodec(type);
+			}
+			if (atomicType.instanceOf(Type.STR) && dict != null) {
+				return new StringCodec(type, dict);
+			}
+		}
+		boolean records = (recordSchemas != null && !recordSchemas.isEmpty());
+		return new GenericCodec(type, records ? new RecordCodec(recordSchemas, dict) : null);
+	}
+	
+	protected void writeGeneric(XDMOutputStream out, Sequence s) throws IOException, QueryException
+	{
+		out.writeByte(GENERIC);
+		out.writeSequence(s, type);
+	}
+	
+	static long zigzag(long v)
+	{
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	static long unzigzag(long v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	/*
+	 * Unsigned varint: 7 bits per byte, least significant group first, the
+	 * high bit marks that more bytes follow
+	 */
+	static void writeVarLong(DataOutput out, long v) throws IOException
+	{
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+	
+	static long readVarLong(DataInput in) throws IOException
+	{
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+	
+	/*
+	 * Plain or dictionary-encoded string, preceded by its marker
+	 */
+	static void writeString(DataOutput out, String s, StringDictionary dict) throws IOException
+	{
+		int i = (dict != null) ? dict.lookup(s) : -1;
+		if (i >= 0) {
+			out.writeByte(DICT);
+			out.writeByte(i);
+		}
+		else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeByte(STRING);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	/*
+	 * Counterpart of writeString() after its marker was read
+	 */
+	static Str readString(DataInput in, int marker, StringDictionary dict) throws IOException
+	{
+		if (marker == DICT) {
+			return dict.get(in.readUnsignedByte());
+		}
+		byte[] bytes = new byte[(int) readVarLong(in)];
+		in.readFully(bytes);
+		return new Str(new String(bytes, "UTF-8"));
+	}
+	
+	private static class GenericCodec extends ColumnCodec {
+		
+		private final RecordCodec records;
+		
+		GenericCodec(SequenceType type, RecordCodec records)
+		{
+			super(type);
+			this.records = records;
+		}
+
+		@Override
+		public void write(XDMOutputStream out, Sequence s) throws IOException, QueryException
+		{
+			if (records == null) {
+				out.writeSequence(s, type);
+				return;
+			}
+			if (!(s instanceof Record) || !records.write(out, (Record) s)) {
+				writeGeneric(out, s);
+			}
+		}
+
+		@Override
+		public Sequence read(XDMInputStream in) throws IOException, QueryException
+		{
+			if (records == null) {
+				return in.readSequence(type);
+			}
+			if (in.readByte() == RECORD) {
+				return records.read(in);
+			}
+			return in.readSequence(type);
+		}
+	}
+	
+	private static class IntegerCodec extends ColumnCodec {
+		
+		IntegerCodec(SequenceType type)
+		{
+			super(type);
+		}
+
+		@Override
+		public void write(XDMOutputStream out, Sequence s) throws IOException, QueryException
+		{
+			if (s == null) {
+				out.writeByte(EMPTY);
+			}
+			else if (s instanceof Int32) {
+				out.writeByte(VARINT);
+				writeVarLong(out, zigzag(((Int32) s).v));
+			}
+			else if (s instanceof Int64) {
+				out.writeByte(VARLONG);
+				writeVarLong(out, zigzag(((Int64) s).v));
+			}
+			else {
+				writeGeneric(out, s);
+			}
+		}
+
+		@Override
+		public Sequence read(XDMInputStream in) throws IOException, QueryException
+		{
+			switch (in.readByte()) {
+			case EMPTY:
+				return null;
+			case VARINT:
+				return new Int32((int) unzigzag(readVarLong(in)));
+			case VARLONG:
+				return new Int64(unzigzag(readVarLong(in)));
+			default:
+				return in.readSequence(type);
+			}
+		}
+	}
+	
+	private static class DoubleCodec extends ColumnCodec {
+		
+		DoubleCodec(SequenceType type)
+		{
+			super(type);
+		}
+
+		@Override
+		public void write(XDMOutputStream out, Sequence s) throws IOException, QueryException
+		{
+			if (s == null) {
+				out.writeByte(EMPTY);
+			}
+			else if (s instanceof Dbl) {
+				out.writeByte(FIXED);
+				out.writeDouble(((Dbl) s).v);
+			}
+			else {
+				writeGeneric(out, s);
+			}
+		}
+
+		@Override
+		public Sequence read(XDMInputStream in) throws IOException, QueryException
+		{
+			switch (in.readByte()) {
+			case EMPTY:
+				return null;
+			case FIXED:
+				return new Dbl(in.readDouble());
+			default:
+				return in.readSequence(type);
+			}
+		}
+	}
+	
+	private static class StringCodec extends ColumnCodec {
+		
+		private final StringDictionary dict;
+		
+		StringCodec(SequenceType type, StringDictionary dict)
+		{
+			super(type);
+			this.dict = dict;
+		}
+
+		@Override
+		public void write(XDMOutputStream out, Sequence s) throws IOException, QueryException
+		{
+			if (s == null) {
+				out.writeByte(EMPTY);
+			}
+			else if (s.getClass() == Str.class) {
+				writeString(out, ((Str) s).str, dict);
+			}
+			else {
+				writeGeneric(out, s);
+			}
+		}
+
+		@Override
+		public Sequence read(XDMInputStream in) throws IOException, QueryException
+		{
+			int marker = in.readByte();
+			switch (marker) {
+			case EMPTY:
+				return null;
+			case STRING:
+			case DICT:
+				return readString(in, marker, dict);
+			default:
+				return in.readSequence(type);
+			}
+		}
+	}
+	
+	private static class BooleanCodec extends ColumnCodec {
+		
+		BooleanCodec(SequenceType type)
+		{
+			super(type);
+		}
+
+		@Override
+		public void write(XDMOutputStream out, Sequence s) throws IOException, QueryException
+		{
+			if (s == null) {
+				out.writeByte(EMPTY);
+			}
+			else if (s instanceof Bool) {
+				out.writeByte(FIXED);
+				out.writeBoolean(((Bool) s).bool);
+			}
+			else {
+				writeGeneric(out, s);
+			}
+		}
+
+		@Override
+		public Sequence read(XDMInputStream in) throws IOException, QueryException
+		{
+			switch (in.readByte()) {
+			case EMPTY:
+				return null;
+			case FIXED:
+				return in.readBoolean() ? Bool.TRUE : Bool.FALSE;
+			default:
+				return in.readSequence(type);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,710 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.util.io.XDMInputStream;
+import org.brackit.xquery.util.io.XDMOutputStream;
+import org.brackit.xquery.xdm.Type;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.Bool;
+import org.brackit.xquery.xdm.atomic.DTD;
+import org.brackit.xquery.xdm.atomic.Date;
+import org.brackit.xquery.xdm.atomic.Dbl;
+import org.brackit.xquery.xdm.atomic.Dec;
+import org.brackit.xquery.xdm.atomic.Flt;
+import org.brackit.xquery.xdm.atomic.Int;
+import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Int64;
+import org.brackit.xquery.xdm.atomic.IntNumeric;
+import org.brackit.xquery.xdm.atomic.Numeric;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.atomic.Una;
+
+/**
+ * Order-preserving ("memcomparable") encoding of grouping key values. Two
+ * encoded keys compare with unsigned lexicographic byte order exactly as the
+ * corresponding atomic values compare, so the shuffle can be sorted with
+ * {@link org.brackit.hadoop.runtime.XQRawKeyComparator} without deserializing
+ * the keys.
+ * 
+ * Every value starts with a marker byte. Empty keys are written as a single
+ * EMPTY or EMPTY_GREATEST marker, which sorts before or after any value,
+ * respectively. Descending key columns are written through an inverting
+ * stream (see {@link #invert(OutputStream)}), which reverses their order while
+ * keeping the encoding self-delimiting. If the runtime value is comparable
+ * with the static type of the key column (any integer in an integer column,
+ * any numeric in a decimal or double column, a string or untyped atomic in a
+ * string column, any date in a date column), the STATIC marker is followed by
+ * the fixed encoding of that type, which decodes to the column type:
+ * 
+ *  - integers: a length byte (0x80 + n for non-negative, 0x7F - n for
+ *    negative values) followed by the n significant bytes in big-endian
+ *    order, so that small keys take two or three bytes instead of eight
+ *  - decimals: sign byte, flipped exponent and terminated digit string
+ *  - doubles and floats: IEEE bits, fully inverted if negative
+ *  - strings: UTF-8 with 0x00 escaped as 0x00 0xFF, terminated by 0x00 0x01;
+ *    with a {@link StringDictionary}, preceded by a code byte, which is
+ *    2i + 1 for the i-th dictionary entry (the string itself is omitted) and
+ *    2r followed by the string for others, where r is the number of
+ *    entries ordered before it
+ *  - dates: the minute at which they start in UTC, written like an integer,
+ *    where dates without timezone are taken to be in UTC
+ *  - booleans: a single byte
+ * 
+ * Otherwise, a class marker (numeric, string, date, boolean) is written
+ * together with the generic encoding of the class and a trailing subtype byte,
+ * which restores the original runtime class when decoding. Values without an
+ * order-preserving encoding fall back to the XDM serialization, which still
+ * preserves equality but not order.
+ */
+public final class KeyCodec {
+
+	public static final int EMPTY = 0x00;
+	public static final int STATIC = 0x01;
+	public static final int NUMERIC = 0x10;
+	public static final int STRING = 0x20;
+	public static final int DATE = 0x30;
+	public static final int BOOLEAN = 0x40;
+	public static final int OTHER = 0x50;
+	public static final int EMPTY_GREATEST = 0xFF;
+	
+	private static final int DEC_NEG_INF = 0x01;
+	private static final int DEC_NEG = 0x02;
+	private static final int DEC_ZERO = 0x03;
+	private static final int DEC_POS = 0x04;
+	private static final int DEC_POS_INF = 0x05;
+	private static final int DEC_NAN = 0x06;
+	
+	private static final int SUB_INT32 = 1;
+	private static final int SUB_INT64 = 2;
+	private static final int SUB_INT = 3;
+	private static final int SUB_DEC = 4;
+	private static final int SUB_DBL = 5;
+	private static final int SUB_FLT = 6;
+	private static final int SUB_STR = 1;
+	private static final int SUB_UNA = 2;
+	
+	private static final int MAX_INTEGER_LENGTH = 126;
+	
+	private static final int MAX_TIMEZONE_MINUTES = 14 * 60;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private KeyCodec()
+	{
+	}
+	
+	public static void encode(DataOutput out, Atomic key, Type type) throws IOException, QueryException
+	{
+		encode(out, key, type, true);
+	}
+	
+	public static void encode(DataOutput out, Atomic key, Type type, boolean emptyLeast) throws IOException, QueryException
+	{
+		encode(out, key, type, emptyLeast, null);
+	}
+	
+	public static void encode(DataOutput out, Atomic key, Type type, boolean emptyLeast, StringDictionary dict)
+			throws IOException, QueryException
+	{
+		if (key == null) {
+			out.writeByte(emptyLeast ? EMPTY : EMPTY_GREATEST);
+		}
+		else if (!encodeStatic(out, key, type, dict)) {
+			encodeDynamic(out, key, type);
+		}
+	}
+	
+	public static Atomic decode(DataInput in, Type type) throws IOException, QueryException
+	{
+		return decode(in, type, null);
+	}
+	
+	public static Atomic decode(DataInput in, Type type, StringDictionary dict) throws IOException, QueryException
+	{
+		int marker = in.readUnsignedByte();
+		switch (marker) {
+		case EMPTY:
+		case EMPTY_GREATEST:
+			return null;
+		case STATIC:
+			return decodeStatic(in, type, dict);
+		case NUMERIC:
+			return decodeNumeric(in);
+		case STRING:
+			String s = readString(in);
+			return (in.readUnsignedByte() == SUB_UNA) ? new Una(s) : new Str(s);
+		case DATE:
+			return readDate(in);
+		case BOOLEAN:
+			return in.readUnsignedByte() != 0 ? Bool.TRUE : Bool.FALSE;
+		case OTHER:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new XDMInputStream(new ByteArrayInputStream(bytes)).readAtomic(type);
+		default:
+			throw new IOException("Invalid key marker: " + marker);
+		}
+	}
+	
+	/**
+	 * Wraps a stream such that all bytes written are inverted, which reverses
+	 * the unsigned lexicographic order of the encoded keys.
+	 */
+	public static OutputStream invert(OutputStream out)
+	{
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(~b & 0xFF);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				for (int i = off; i < off + len; i++) {
+					out.write(~b[i] & 0xFF);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Counterpart of {@link #invert(OutputStream)} for reading.
+	 */
+	public static InputStream invert(InputStream in)
+	{
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException
+			{
+				int b = in.read();
+				return (b < 0) ? b : (~b & 0xFF);
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int n = in.read(b, off, len);
+				for (int i = off; i < off + n; i++) {
+					b[i] = (byte) ~b[i];
+				}
+				return n;
+			}
+		};
+	}
+	
+	private static boolean encodeStatic(DataOutput out, Atomic key, Type type, StringDictionary dict)
+			throws IOException
+	{
+		if (type == null) {
+			return false;
+		}
+		if (type.instanceOf(Type.INR)) {
+			if (!(key instanceof IntNumeric)) {
+				return false;
+			}
+			out.writeByte(STATIC);
+			if (key instanceof Int32 || key instanceof Int64) {
+				writeInteger(out, ((IntNumeric) key).longValue());
+			}
+			else {
+				writeInteger(out, ((IntNumeric) key).decimalValue().toBigInteger());
+			}
+		}
+		else if (type.instanceOf(Type.DEC)) {
+			if (!(key instanceof Numeric) || key instanceof Dbl || key instanceof Flt) {
+				return false;
+			}
+			out.writeByte(STATIC);
+			writeDecimal(out, ((Numeric) key).decimalValue());
+		}
+		else if (type.instanceOf(Type.DBL) || type.instanceOf(Type.FLO)) {
+			if (!(key instanceof Numeric)) {
+				return false;
+			}
+			out.writeByte(STATIC);
+			writeDouble(out, ((Numeric) key).doubleValue());
+		}
+		else if (type.instanceOf(Type.STR) || type.instanceOf(Type.UNA)) {
+			// untyped atomics compare with strings as strings
+			if (!(key instanceof Str || key instanceof Una)) {
+				return false;
+			}
+			String str = (key instanceof Str) ? ((Str) key).str : ((Una) key).str;
+			out.writeByte(STATIC);
+			if (dict == null || !type.instanceOf(Type.STR)) {
+				writeString(out, str);
+			}
+			else {
+				writeString(out, str, dict);
+			}
+		}
+		else if (type.instanceOf(Type.DATE)) {
+			if (!(key instanceof Date)) {
+				return false;
+			}
+			out.writeByte(STATIC);
+			writeDate(out, (Date) key);
+		}
+		else if (type.instanceOf(Type.BOOL)) {
+			if (!(key instanceof Bool)) {
+				return false;
+			}
+			out.writeByte(STATIC);
+			out.writeByte(((Bool) key).bool ? 1 : 0);
+		}
+		else {
+			return false;
+		}
+		return true;
+	}
+	
+	private static Atomic decodeStatic(DataInput in, Type type, StringDictionary dict) throws IOException
+	{
+		if (type.instanceOf(Type.INR)) {
+			return readIntegerKey(in);
+		}
+		else if (type.instanceOf(Type.DEC)) {
+			return new Dec(readDecimal(in));
+		}
+		else if (type.instanceOf(Type.DBL)) {
+			return new Dbl(readDouble(in));
+		}
+		else if (type.instanceOf(Type.FLO)) {
+			return new Flt((float) readDouble(in));
+		}
+		else if (type.instanceOf(Type.STR)) {
+			return (dict == null) ? new Str(readString(in)) : readString(in, dict);
+		}
+		else if (type.instanceOf(Type.UNA)) {
+			return new Una(readString(in));
+		}
+		else if (type.instanceOf(Type.DATE)) {
+			return readDate(in);
+		}
+		else if (type.instanceOf(Type.BOOL)) {
+			return in.readUnsignedByte() != 0 ? Bool.TRUE : Bool.FALSE;
+		}
+		throw new IOException("No static key encoding for type " + type);
+	}
+	
+	private static void encodeDynamic(DataOutput out, Atomic key, Type type) throws IOException, QueryException
+	{
+		if (key instanceof Numeric) {
+			out.writeByte(NUMERIC);
+			if (key instanceof Dbl || key instanceof Flt) {
+				double d = ((Numeric) key).doubleValue();
+				if (Double.isNaN(d)) {
+					out.writeByte(DEC_NAN);
+				}
+				else if (Double.isInfinite(d)) {
+					out.writeByte(d < 0 ? DEC_NEG_INF : DEC_POS_INF);
+				}
+				else {
+					writeDecimal(out, new BigDecimal(d));
+				}
+				out.writeByte(key instanceof Dbl ? SUB_DBL : SUB_FLT);
+			}
+			else {
+				writeDecimal(out, ((Numeric) key).decimalValue());
+				if (key instanceof Int32) {
+					out.writeByte(SUB_INT32);
+				}
+				else if (key instanceof Int64) {
+					out.writeByte(SUB_INT64);
+				}
+				else if (key instanceof Int) {
+					out.writeByte(SUB_INT);
+				}
+				else {
+					out.writeByte(SUB_DEC);
+				}
+			}
+		}
+		else if (key instanceof Str || key instanceof Una) {
+			out.writeByte(STRING);
+			if (key instanceof Str) {
+				writeString(out, ((Str) key).str);
+				out.writeByte(SUB_STR);
+			}
+			else {
+				writeString(out, ((Una) key).str);
+				out.writeByte(SUB_UNA);
+			}
+		}
+		else if (key instanceof Date) {
+			out.writeByte(DATE);
+			writeDate(out, (Date) key);
+		}
+		else if (key instanceof Bool) {
+			out.writeByte(BOOLEAN);
+			out.writeByte(((Bool) key).bool ? 1 : 0);
+		}
+		else {
+			// no order-preserving encoding available -> equality only
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			XDMOutputStream xdm = new XDMOutputStream(buffer);
+			xdm.writeAtomic(key, type);
+			xdm.close();
+			byte[] bytes = buffer.toByteArray();
+			out.writeByte(OTHER);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static Atomic decodeNumeric(DataInput in) throws IOException
+	{
+		int sign = in.readUnsignedByte();
+		double special = Double.NaN;
+		BigDecimal value = null;
+		switch (sign) {
+		case DEC_NAN:
+			break;
+		case DEC_NEG_INF:
+			special = Double.NEGATIVE_INFINITY;
+			break;
+		case DEC_POS_INF:
+			special = Double.POSITIVE_INFINITY;
+			break;
+		default:
+			value = readDecimal(in, sign);
+		}
+		
+		int sub = in.readUnsignedByte();
+		switch (sub) {
+		case SUB_INT32:
+			return new Int32(value.intValue());
+		case SUB_INT64:
+			return new Int64(value.longValue());
+		case SUB_INT:
+			return new Int(value);
+		case SUB_DEC:
+			return new Dec(value);
+		case SUB_DBL:
+			return new Dbl(value != null ? value.doubleValue() : special);
+		case SUB_FLT:
+			return new Flt(value != null ? value.floatValue() : (float) special);
+		default:
+			throw new IOException("Invalid numeric key subtype: " + sub);
+		}
+	}
+	
+	/*
+	 * A decimal is written as 0.d1d2...dn * 10^exp with normalized digits, i.e.,
+	 * d1 != 0 and dn != 0. Positive values then compare by exponent first and by
+	 * the terminated digit string second. For negative values, all bytes after
+	 * the sign are inverted, which also makes shorter digit strings greater. 
+	 */
+	private static void writeDecimal(DataOutput out, BigDecimal d) throws IOException
+	{
+		int signum = d.signum();
+		if (signum == 0) {
+			out.writeByte(DEC_ZERO);
+			return;
+		}
+		
+		BigInteger unscaled = d.unscaledValue().abs();
+		int scale = d.scale();
+		BigInteger[] qr = unscaled.divideAndRemainder(BigInteger.TEN);
+		while (qr[1].signum() == 0) {
+			unscaled = qr[0];
+			scale--;
+			qr = unscaled.divideAndRemainder(BigInteger.TEN);
+		}
+		String digits = unscaled.toString();
+		int exp = digits.length() - scale;
+		int mask = (signum > 0) ? 0 : 0xFF;
+		
+		out.writeByte(signum > 0 ? DEC_POS : DEC_NEG);
+		out.writeInt((exp ^ Integer.MIN_VALUE) ^ (mask != 0 ? -1 : 0));
+		for (int i = 0; i < digits.length(); i++) {
+			out.writeByte((digits.charAt(i) - '0' + 1) ^ mask);
+		}
+		out.writeByte(mask);
+	}
+	
+	private static BigDecimal readDecimal(DataInput in) throws IOException
+	{
+		return readDecimal(in, in.readUnsignedByte());
+	}
+	
+	private static BigDecimal readDecimal(DataInput in, int sign) throws IOException
+	{
+		if (sign == DEC_ZERO) {
+			return BigDecimal.ZERO;
+		}
+		if (sign != DEC_POS && sign != DEC_NEG) {
+			throw new IOException("Invalid decimal key sign: " + sign);
+		}
+		
+		int mask = (sign == DEC_POS) ? 0 : 0xFF;
+		int exp = (in.readInt() ^ (mask != 0 ? -1 : 0)) ^ Integer.MIN_VALUE;
+		StringBuilder digits = new StringBuilder();
+		int b;
+		while ((b = in.readUnsignedByte() ^ mask) != 0) {
+			digits.append((char) ('0' + b - 1));
+		}
+		BigDecimal result = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exp);
+		return (sign == DEC_POS) ? result : result.negate();
+	}
+	
+	/*
+	 * Non-negative values are written as their n significant bytes behind
+	 * the length byte 0x80 + n, negative values as the n bytes needed to
+	 * restore them by sign extension behind the length byte 0x7F - n. Longer
+	 * negative values are smaller and longer non-negative values are larger,
+	 * and values of equal length compare by their bytes. Values longer than
+	 * MAX_INTEGER_LENGTH bytes write the length byte 0xFF or 0x00 followed by
+	 * n as int, which is inverted for negative values.
+	 */
+	private static void writeInteger(DataOutput out, long v) throws IOException
+	{
+		int n = (64 - Long.numberOfLeadingZeros(v < 0 ? ~v : v) + 7) / 8;
+		out.writeByte(v < 0 ? 0x7F - n : 0x80 + n);
+		for (int i = n - 1; i >= 0; i--) {
+			out.writeByte((int) (v >>> (8 * i)));
+		}
+	}
+	
+	private static void writeInteger(DataOutput out, BigInteger v) throws IOException
+	{
+		if (v.bitLength() < 64) {
+			writeInteger(out, v.longValue());
+			return;
+		}
+		int n = (v.bitLength() + 7) / 8;
+		boolean negative = (v.signum() < 0);
+		if (n <= MAX_INTEGER_LENGTH) {
+			out.writeByte(negative ? 0x7F - n : 0x80 + n);
+		}
+		else {
+			out.writeByte(negative ? 0x00 : 0xFF);
+			out.writeInt(negative ? ~n : n);
+		}
+		byte[] bytes = v.toByteArray();
+		out.write(bytes, bytes.length - n, n);
+	}
+	
+	private static int readIntegerLength(DataInput in, int len) throws IOException
+	{
+		if (len == 0x00) {
+			return ~in.readInt();
+		}
+		if (len == 0xFF) {
+			return in.readInt();
+		}
+		return (len < 0x80) ? 0x7F - len : len - 0x80;
+	}
+	
+	private static long readInteger(DataInput in) throws IOException
+	{
+		int len = in.readUnsignedByte();
+		int n = readIntegerLength(in, len);
+		if (n > 8) {
+			throw new IOException("Invalid integer key length: " + n);
+		}
+		long v = (len < 0x80) ? -1L : 0L;
+		for (int i = 0; i < n; i++) {
+			v = (v << 8) | in.readUnsignedByte();
+		}
+		return v;
+	}
+	
+	private static Atomic readIntegerKey(DataInput in) throws IOException
+	{
+		int len = in.readUnsignedByte();
+		boolean negative = (len < 0x80);
+		int n = readIntegerLength(in, len);
+		if (n < 8) {
+			long v = negative ? -1L : 0L;
+			for (int i = 0; i < n; i++) {
+				v = (v << 8) | in.readUnsignedByte();
+			}
+			return (v == (int) v) ? new Int32((int) v) : new Int64(v);
+		}
+		byte[] bytes = new byte[n + 1];
+		bytes[0] = (byte) (negative ? -1 : 0);
+		in.readFully(bytes, 1, n);
+		BigInteger v = new BigInteger(bytes);
+		// eight bytes with implied sign may exceed a long
+		return (v.bitLength() < 64) ? new Int64(v.longValue()) : new Int(new BigDecimal(v));
+	}
+	
+	private static void writeDouble(DataOutput out, double d) throws IOException
+	{
+		if (d == 0.0d) {
+			d = 0.0d; // treat -0.0 as 0.0
+		}
+		long bits = Double.doubleToLongBits(d);
+		bits = (bits < 0) ? ~bits : (bits ^ Long.MIN_VALUE);
+		out.writeLong(bits);
+	}
+	
+	private static double readDouble(DataInput in) throws IOException
+	{
+		long bits = in.readLong();
+		bits = (bits < 0) ? (bits ^ Long.MIN_VALUE) : ~bits;
+		return Double.longBitsToDouble(bits);
+	}
+	
+	private static void writeString(DataOutput out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(UTF8);
+		for (int i = 0; i < bytes.length; i++) {
+			out.writeByte(bytes[i]);
+			if (bytes[i] == 0) {
+				out.writeByte(0xFF);
+			}
+		}
+		out.writeByte(0x00);
+		out.writeByte(0x01);
+	}
+	
+	private static void writeString(DataOutput out, String s, StringDictionary dict) throws IOException
+	{
+		int i = dict.lookup(s);
+		if (i >= 0) {
+			out.writeByte(2 * i + 1);
+		}
+		else {
+			out.writeByte(2 * dict.rank(s));
+			writeString(out, s);
+		}
+	}
+	
+	private static Str readString(DataInput in, StringDictionary dict) throws IOException
+	{
+		int code = in.readUnsignedByte();
+		if ((code & 1) != 0) {
+			return dict.get(code >> 1);
+		}
+		return new Str(readString(in));
+	}
+	
+	private static String readString(DataInput in) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		while (true) {
+			int b = in.readUnsignedByte();
+			if (b == 0) {
+				if (in.readUnsignedByte() == 0x01) {
+					break;
+				}
+			}
+			buffer.write(b);
+		}
+		return new String(buffer.toByteArray(), UTF8);
+	}
+	
+	/*
+	 * Dates in different timezones compare (and are equal) like the instants
+	 * at which they start, so they are written as that minute in UTC. Dates
+	 * without timezone are taken to be in UTC. A date starting at a minute
+	 * which is not midnight in UTC is restored in a timezone in which it
+	 * starts at that minute.
+	 */
+	private static void writeDate(DataOutput out, Date date) throws IOException
+	{
+		long minutes = toDays(date) * 1440L;
+		DTD tz = date.getTimezone();
+		if (tz != null) {
+			int offset = tz.getHours() * 60 + tz.getMinutes();
+			minutes += tz.isNegative() ? offset : -offset;
+		}
+		writeInteger(out, minutes);
+	}
+	
+	private static Date readDate(DataInput in) throws IOException
+	{
+		long minutes = readInteger(in);
+		int days = (int) (minutes / 1440);
+		int rest = (int) (minutes % 1440);
+		if (rest < 0) {
+			days--;
+			rest += 1440;
+		}
+		if (rest == 0) {
+			return toDate(days, null);
+		}
+		if (1440 - rest <= MAX_TIMEZONE_MINUTES) {
+			return toDate(days + 1, timezone(false, 1440 - rest));
+		}
+		return toDate(days, timezone(true, rest));
+	}
+	
+	private static DTD timezone(boolean negative, int minutes)
+	{
+		return new DTD(negative, 0, (byte) (minutes / 60), (byte) (minutes % 60), 0);
+	}
+	
+	// civil-from-days conversions after H. Hinnant's chrono algorithms
+	private static int toDays(Date date)
+	{
+		int y = date.getYear();
+		int m = date.getMonth();
+		int d = date.getDay();
+		y -= (m <= 2) ? 1 : 0;
+		int era = ((y >= 0) ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+	
+	private static Date toDate(int days, DTD tz)
+	{
+		int z = days + 719468;
+		int era = ((z >= 0) ? z : z - 146096) / 146097;
+		int doe = z - era * 146097;
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int d = doy - (153 * mp + 2) / 5 + 1;
+		int m = mp + ((mp < 10) ? 3 : -9);
+		int y = yoe + era * 400 + ((m <= 2) ? 1 : 0);
+		return new Date((short) y, (byte) m, (byte) d, tz);
+	}
+
+}
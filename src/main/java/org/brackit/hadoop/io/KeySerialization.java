@@ -27,24 +27,21 @@
  */
 package org.brackit.hadoop.io;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
 
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.Serialization;
 import org.apache.hadoop.io.serializer.Serializer;
 import org.brackit.hadoop.runtime.XQGroupingKey;
 import org.brackit.xquery.QueryException;
-import org.brackit.xquery.util.io.XDMInputStream;
-import org.brackit.xquery.util.io.XDMOutputStream;
 import org.brackit.xquery.xdm.Type;
 import org.brackit.xquery.xdm.atomic.Atomic;
 import org.brackit.xquery.xdm.atomic.Int32;
-import org.brackit.xquery.xdm.type.AtomicType;
-import org.brackit.xquery.xdm.type.SequenceType;
 
 public class KeySerialization extends AbstractSerialization implements Serialization<XQGroupingKey> {
 
@@ -59,12 +56,14 @@ public class KeySerialization extends AbstractSerialization implements Serializa
 	
 	private class KeySerializer implements Serializer<XQGroupingKey> {
 
-		private XDMOutputStream out;
+		private DataOutputStream out;
+		private DataOutputStream invertedOut;
 		
 		@Override
 		public void open(OutputStream out) throws IOException
 		{
-			this.out = new XDMOutputStream(out);
+			this.out = new DataOutputStream(out);
+			this.invertedOut = new DataOutputStream(KeyCodec.invert(out));
 		}
 
 		@Override
@@ -75,14 +74,14 @@ public class KeySerialization extends AbstractSerialization implements Serializa
 
 				int len = isMultiMap ? (keys.length - 1) : keys.length;
 				int tag = isMultiMap ? ((Int32) keys[len]).v : 0;
-				List<SequenceType> types = getTypes(tag);
+				Type[] types = keyTypes[tag];
 
 				if (isMultiMap) {
 					out.writeByte(tag);
 				}
 				for (int i = 0; i < len; i++) {
-					Type type = ((AtomicType) types.get(keyIndexes[tag].get(i)).getItemType()).getType();
-					out.writeAtomic(keys[i], type);
+					KeyCodec.encode(keyDesc[tag][i] ? invertedOut : out, keys[i], types[i], keyLeast[tag][i],
+							dictionary);
 				}
 			}
 			catch (QueryException e) {
@@ -100,28 +99,46 @@ public class KeySerialization extends AbstractSerialization implements Serializa
 	
 	private class KeyDeserializer implements Deserializer<XQGroupingKey> {
 
-		private XDMInputStream in;
+		private DataInputStream in;
+		private DataInputStream invertedIn;
+		private final int[][] indexes;
+		
+		KeyDeserializer()
+		{
+			indexes = new int[(keyIndexes != null) ? keyIndexes.length : 0][];
+			for (int tag = 0; tag < indexes.length; tag++) {
+				if (keyIndexes[tag] != null) {
+					indexes[tag] = intArray(keyIndexes[tag]);
+				}
+			}
+		}
 		
 		@Override
 		public void open(InputStream in) throws IOException
 		{
-			this.in = new XDMInputStream(in);
+			this.in = new DataInputStream(in);
+			this.invertedIn = new DataInputStream(KeyCodec.invert(in));
 		}
 
+		/*
+		 * The given key is refilled if it was read with the same tag, which
+		 * is checked by the identity of its key indexes
+		 */
 		@Override
 		public XQGroupingKey deserialize(XQGroupingKey t) throws IOException
 		{
 			try {
 				int tag = isMultiMap ? in.readByte() : 0;
-				List<SequenceType> types = getTypes(tag);
-				Atomic[] keys = new Atomic[keyIndexes[tag].size()];
+				Type[] types = keyTypes[tag];
+				XQGroupingKey key = (t != null && t.getIndexes() == indexes[tag]) ? t
+						: new XQGroupingKey(new Atomic[indexes[tag].length], indexes[tag]);
+				Atomic[] keys = key.getKeys();
 
 				for (int i = 0; i < keys.length; i++) {
-					Type type = ((AtomicType) types.get(keyIndexes[tag].get(i)).getItemType()).getType();
-					keys[i] = in.readAtomic(type);
+					keys[i] = KeyCodec.decode(keyDesc[tag][i] ? invertedIn : in, types[i], dictionary);
 				}
 				
-				return new XQGroupingKey(keys, intArray(keyIndexes[tag]));
+				return key;
 			}
 			catch (QueryException e) {
 				throw new IOException(e);
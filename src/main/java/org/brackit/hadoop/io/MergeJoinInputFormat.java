@@ -0,0 +1,153 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.brackit.hadoop.job.XQueryJobConf;
+
+/**
+ * Pairs the part files of two co-partitioned job outputs by partition
+ * number, i.e., one map task per partition. As with the
+ * {@link RangeInputFormat}, no records are delivered to the mapper; the
+ * files of the split are read by the merge join operator itself.
+ * 
+ */
+@SuppressWarnings("rawtypes")
+public class MergeJoinInputFormat extends InputFormat {
+	
+	private static final Log LOG = LogFactory.getLog(MergeJoinInputFormat.class);
+	
+	private static final PathFilter PART_FILTER = new PathFilter() {
+		public boolean accept(Path path)
+		{
+			return path.getName().startsWith("part-");
+		}
+	};
+
+	@Override
+	public List<InputSplit> getSplits(JobContext context) throws IOException, InterruptedException
+	{
+		Configuration conf = context.getConfiguration();
+		String[] inputs = conf.getStrings(XQueryJobConf.PROP_MERGE_INPUTS);
+		if (inputs == null || inputs.length != 2) {
+			throw new IOException("Invalid specification of merge join inputs in job configuration");
+		}
+		
+		FileStatus[] left = listParts(new Path(inputs[0]), conf);
+		FileStatus[] right = listParts(new Path(inputs[1]), conf);
+		if (left.length != right.length) {
+			throw new IOException(String.format("Merge join inputs have different numbers " +
+					"of partitions (%d and %d)", left.length, right.length));
+		}
+		
+		ArrayList<InputSplit> result = new ArrayList<InputSplit>(left.length);
+		for (int i = 0; i < left.length; i++) {
+			// prefer the hosts of the larger file
+			FileStatus larger = left[i].getLen() >= right[i].getLen() ? left[i] : right[i];
+			FileSystem fs = larger.getPath().getFileSystem(conf);
+			BlockLocation[] blocks = fs.getFileBlockLocations(larger, 0, larger.getLen());
+			String[] hosts = blocks.length > 0 ? blocks[0].getHosts() : null;
+			
+			result.add(new MergeJoinSplit(left[i].getPath(), right[i].getPath(),
+					left[i].getLen() + right[i].getLen(), hosts));
+			LOG.info(String.format("Task %d merges %s and %s", i, left[i].getPath(), right[i].getPath()));
+		}
+		return result;
+	}
+	
+	private FileStatus[] listParts(Path dir, Configuration conf) throws IOException
+	{
+		FileSystem fs = dir.getFileSystem(conf);
+		FileStatus[] parts = fs.listStatus(dir, PART_FILTER);
+		if (parts == null) {
+			throw new IOException("Merge join input " + dir + " does not exist");
+		}
+		// part-r-00000, part-r-00001, ... 
+		Arrays.sort(parts);
+		return parts;
+	}
+	
+	@Override
+	public RecordReader createRecordReader(InputSplit split,
+			TaskAttemptContext context) throws IOException, InterruptedException
+	{
+		return new RecordReader() {
+
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context)
+					throws IOException, InterruptedException
+			{
+			}
+
+			@Override
+			public boolean nextKeyValue() throws IOException,
+					InterruptedException {
+				return false;
+			}
+
+			@Override
+			public Object getCurrentKey() throws IOException,
+					InterruptedException {
+				return null;
+			}
+
+			@Override
+			public Object getCurrentValue() throws IOException,
+					InterruptedException {
+				return null;
+			}
+
+			@Override
+			public float getProgress() throws IOException, InterruptedException {
+				return 0;
+			}
+
+			@Override
+			public void close() throws IOException {
+			}
+		};
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+/**
+ * A pair of part files with the same partition number, one of each input of
+ * a map-side merge join.
+ * 
+ */
+public class MergeJoinSplit extends InputSplit implements Writable {
+
+	private Path left;
+	private Path right;
+	private long length;
+	private String[] hosts;
+	
+	public MergeJoinSplit()
+	{
+		
+	}
+	
+	public MergeJoinSplit(Path left, Path right, long length, String[] hosts)
+	{
+		this.left = left;
+		this.right = right;
+		this.length = length;
+		this.hosts = hosts;
+	}
+
+	@Override
+	public long getLength() throws IOException, InterruptedException
+	{
+		return length;
+	}
+
+	@Override
+	public String[] getLocations() throws IOException, InterruptedException
+	{
+		// not serialized, only used for scheduling
+		return hosts != null ? hosts : new String[0];
+	}
+	
+	public Path getLeft()
+	{
+		return left;
+	}
+	
+	public Path getRight()
+	{
+		return right;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException
+	{
+		Text.writeString(out, left.toString());
+		Text.writeString(out, right.toString());
+		out.writeLong(length);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException
+	{
+		left = new Path(Text.readString(in));
+		right = new Path(Text.readString(in));
+		length = in.readLong();
+		hosts = null;
+	}
+
+}
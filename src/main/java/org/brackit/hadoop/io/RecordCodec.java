@@ -0,0 +1,228 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.util.io.XDMInputStream;
+import org.brackit.xquery.util.io.XDMOutputStream;
+import org.brackit.xquery.xdm.Record;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.atomic.Dbl;
+import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Int64;
+import org.brackit.xquery.xdm.atomic.QNm;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.record.ArrayRecord;
+
+/**
+ * Serialization of records whose fields follow one of the record schemas
+ * registered for the query (see XQueryJobConf#setRecordSchemas). Instead of
+ * the field names, a record is written as the ordinal of its schema, a
+ * bitmask of the schema fields present (records of projected scans carry
+ * only a subset) and the field values in schema order.
+ * 
+ * Since map output records are sorted and spilled individually, and splits
+ * of intermediate files may start anywhere, the schemas cannot be written
+ * once per stream. The registry is instead shipped in the configuration of
+ * all jobs of a query, which makes every record self-contained. Likewise,
+ * strings of the query dictionary are written as their position in it.
+ */
+final class RecordCodec {
+	
+	private static final int EMPTY = 0;
+	private static final int GENERIC = 1;
+	private static final int DOUBLE = 2;
+	private static final int VARINT = 3;
+	private static final int VARLONG = 4;
+	private static final int STRING = ColumnCodec.STRING;
+	private static final int DICT = ColumnCodec.DICT;
+	
+	private final QNm[][] schemas;
+	private final StringDictionary dict;
+	
+	// last schema matched (written) and last field names built (read)
+	private Match lastWritten;
+	private Match lastRead;
+	
+	private static final class Match {
+		final int schema;
+		final long mask;
+		final QNm[] names;
+		
+		Match(int schema, long mask, QNm[] names)
+		{
+			this.schema = schema;
+			this.mask = mask;
+			this.names = names;
+		}
+	}
+	
+	RecordCodec(List<QNm[]> schemas, StringDictionary dict)
+	{
+		this.schemas = schemas.toArray(new QNm[schemas.size()][]);
+		this.dict = dict;
+	}
+	
+	/**
+	 * Writes the record (marked as such) if it matches a registered schema
+	 * and returns false without writing anything otherwise.
+	 */
+	boolean write(XDMOutputStream out, Record r) throws IOException, QueryException
+	{
+		Match match = match(r);
+		if (match == null) {
+			return false;
+		}
+		out.writeByte(ColumnCodec.RECORD);
+		ColumnCodec.writeVarLong(out, match.schema);
+		ColumnCodec.writeVarLong(out, match.mask);
+		for (int i = 0; i < match.names.length; i++) {
+			writeValue(out, r.value(i));
+		}
+		return true;
+	}
+	
+	Record read(XDMInputStream in) throws IOException, QueryException
+	{
+		int schema = (int) ColumnCodec.readVarLong(in);
+		long mask = ColumnCodec.readVarLong(in);
+		if (schema >= schemas.length) {
+			throw new IOException("Unknown record schema " + schema);
+		}
+		
+		// share the names array among all records of the same shape
+		Match match = lastRead;
+		if (match == null || match.schema != schema || match.mask != mask) {
+			QNm[] fields = schemas[schema];
+			QNm[] names = new QNm[Long.bitCount(mask)];
+			for (int i = 0, j = 0; i < fields.length; i++) {
+				if ((mask & (1L << i)) != 0) {
+					names[j++] = fields[i];
+				}
+			}
+			match = new Match(schema, mask, names);
+			lastRead = match;
+		}
+		
+		Sequence[] values = new Sequence[match.names.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = readValue(in);
+		}
+		return new ArrayRecord(match.names, values);
+	}
+	
+	private Match match(Record r) throws QueryException
+	{
+		int len = r.len();
+		
+		// records of a scan share their field names
+		Match match = lastWritten;
+		if (match != null && match.names.length == len) {
+			int i = 0;
+			while (i < len && r.name(i) == match.names[i]) {
+				i++;
+			}
+			if (i == len) {
+				return match;
+			}
+		}
+		
+		QNm[] names = new QNm[len];
+		for (int i = 0; i < len; i++) {
+			names[i] = r.name(i);
+		}
+		for (int s = 0; s < schemas.length; s++) {
+			// the record fields must be a subsequence of the schema fields
+			QNm[] fields = schemas[s];
+			long mask = 0;
+			int j = 0;
+			for (int i = 0; i < fields.length && j < len; i++) {
+				if (fields[i].atomicCmp(names[j]) == 0) {
+					mask |= 1L << i;
+					j++;
+				}
+			}
+			if (j == len) {
+				match = new Match(s, mask, names);
+				lastWritten = match;
+				return match;
+			}
+		}
+		return null;
+	}
+	
+	private void writeValue(XDMOutputStream out, Sequence s) throws IOException, QueryException
+	{
+		if (s == null) {
+			out.writeByte(EMPTY);
+		}
+		else if (s instanceof Int32) {
+			out.writeByte(VARINT);
+			ColumnCodec.writeVarLong(out, ColumnCodec.zigzag(((Int32) s).v));
+		}
+		else if (s instanceof Int64) {
+			out.writeByte(VARLONG);
+			ColumnCodec.writeVarLong(out, ColumnCodec.zigzag(((Int64) s).v));
+		}
+		else if (s instanceof Dbl) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Dbl) s).v);
+		}
+		else if (s.getClass() == Str.class) {
+			ColumnCodec.writeString(out, ((Str) s).str, dict);
+		}
+		else {
+			out.writeByte(GENERIC);
+			out.writeSequence(s);
+		}
+	}
+	
+	private Sequence readValue(XDMInputStream in) throws IOException, QueryException
+	{
+		int marker = in.readByte();
+		switch (marker) {
+		case EMPTY:
+			return null;
+		case VARINT:
+			return new Int32((int) ColumnCodec.unzigzag(ColumnCodec.readVarLong(in)));
+		case VARLONG:
+			return new Int64(ColumnCodec.unzigzag(ColumnCodec.readVarLong(in)));
+		case DOUBLE:
+			return new Dbl(in.readDouble());
+		case STRING:
+		case DICT:
+			return ColumnCodec.readString(in, marker, dict);
+		default:
+			return in.readSequence();
+		}
+	}
+	
+}
@@ -0,0 +1,116 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.brackit.xquery.xdm.atomic.Str;
+
+/**
+ * Dictionary of frequent strings, shared by all jobs of a query (see
+ * org.brackit.hadoop.job.DictionaryBuilder). The entries are sorted in
+ * code point order, which is the unsigned byte order of their UTF-8
+ * encoding, so that key columns can be dictionary-encoded without breaking
+ * the raw comparison of keys (see {@link KeyCodec}).
+ */
+public final class StringDictionary {
+	
+	/**
+	 * Maximum number of entries, so that key codes fit in a single byte
+	 */
+	public static final int MAX_SIZE = 127;
+	
+	public static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b)
+		{
+			int i = 0;
+			int j = 0;
+			while (i < a.length() && j < b.length()) {
+				int ca = a.codePointAt(i);
+				int cb = b.codePointAt(j);
+				if (ca != cb) {
+					return (ca < cb) ? -1 : 1;
+				}
+				i += Character.charCount(ca);
+				j += Character.charCount(cb);
+			}
+			return (a.length() - i) - (b.length() - j);
+		}
+	};
+	
+	private final String[] values;
+	private final Str[] atoms;
+	private final HashMap<String, Integer> index;
+	
+	public StringDictionary(String[] values)
+	{
+		if (values.length > MAX_SIZE) {
+			throw new IllegalArgumentException("Dictionary exceeds " + MAX_SIZE + " entries");
+		}
+		this.values = values.clone();
+		Arrays.sort(this.values, CODE_POINT_ORDER);
+		atoms = new Str[values.length];
+		index = new HashMap<String, Integer>();
+		for (int i = 0; i < values.length; i++) {
+			atoms[i] = new Str(this.values[i]);
+			index.put(this.values[i], i);
+		}
+	}
+	
+	public int size()
+	{
+		return values.length;
+	}
+	
+	/**
+	 * Returns the position of the string in the dictionary or -1.
+	 */
+	public int lookup(String s)
+	{
+		Integer i = index.get(s);
+		return (i != null) ? i : -1;
+	}
+	
+	/**
+	 * Returns the number of entries ordered before the (missing) string.
+	 */
+	public int rank(String s)
+	{
+		int pos = Arrays.binarySearch(values, s, CODE_POINT_ORDER);
+		return (pos >= 0) ? pos : -(pos + 1);
+	}
+	
+	public Str get(int i)
+	{
+		return atoms[i];
+	}
+	
+}
@@ -30,7 +30,6 @@ package org.brackit.hadoop.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
 
 import org.apache.hadoop.io.serializer.Deserializer;
 import org.apache.hadoop.io.serializer.Serialization;
@@ -42,7 +41,6 @@ import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
 import org.brackit.xquery.xdm.TupleImpl;
 import org.brackit.xquery.xdm.atomic.Int32;
-import org.brackit.xquery.xdm.type.SequenceType;
 
 /**
  * 
@@ -100,21 +98,14 @@ public class TupleSerialization extends AbstractSerialization implements Seriali
 					width--;
 				}
 				
-				List<SequenceType> types = getTypes(tag);
-				if (types.size() != width) {
+				ColumnCodec[] columns = codecs[tag];
+				if (columns.length != width) {
 					throw new IOException("Length of tuple to be serialized is invalid");
 				}
 				
 				for (int i = 0; i < width; i++) {
-					boolean isKey = false;
-					for (int j = 0; j < keyIndexes[tag].size(); j++) {
-						if (keyIndexes[tag].get(j) == i) {
-							isKey = true;
-							break;
-						}
-					}
-					if (!isKey) {
-						out.writeSequence(t.get(i), types.get(i));
+					if (columns[i] != null) {
+						columns[i].write(out, t.get(i));
 					}
 				}
 			}
@@ -134,6 +125,15 @@ public class TupleSerialization extends AbstractSerialization implements Seriali
 	private class TupleDeserializer implements Deserializer<Tuple> {
 
 		private XDMInputStream in;
+		private final Int32[] tags;
+		
+		TupleDeserializer()
+		{
+			tags = new Int32[(types != null) ? types.length : 0];
+			for (int tag = 0; tag < tags.length; tag++) {
+				tags[tag] = new Int32(tag);
+			}
+		}
 		
 		@Override
 		public void open(InputStream in) throws IOException
@@ -141,29 +141,28 @@ public class TupleSerialization extends AbstractSerialization implements Seriali
 			this.in = new XDMInputStream(in);
 		}
 
+		/*
+		 * The given tuple is refilled in place if it has the width of the
+		 * tuples read, so readers which keep tuples must pass null
+		 */
 		@Override
 		public Tuple deserialize(Tuple t) throws IOException
 		{
 			try {
 				int tag = isMultiMap ? in.readByte() : 0;				
-				List<SequenceType> types = getTypes(tag);
+				ColumnCodec[] columns = codecs[tag];
 				
-				Sequence[] seqs = new Sequence[types.size() + (isMultiMap ? 1: 0)];
-				for (int i = 0; i < types.size(); i++) {
-					boolean isKey = false;
-					for (int j = 0; j < keyIndexes[tag].size(); j++) {
-						if (keyIndexes[tag].get(j) == i) {
-							isKey = true;
-							break;
-						}
-					}
-					seqs[i] = isKey ? null : in.readSequence(types.get(i));
+				int width = columns.length + (isMultiMap ? 1: 0);
+				Tuple result = (t != null && t.getSize() == width) ? t : new TupleImpl(new Sequence[width]);
+				Sequence[] seqs = result.array();
+				for (int i = 0; i < columns.length; i++) {
+					seqs[i] = (columns[i] != null) ? columns[i].read(in) : null;
 				}
 				if (isMultiMap) {
-					seqs[seqs.length - 1] = new Int32(tag);
+					seqs[width - 1] = tags[tag];
 				}
 				
-				return new TupleImpl(seqs);
+				return result;
 			}
 			catch (QueryException e) {
 				throw new IOException(e);
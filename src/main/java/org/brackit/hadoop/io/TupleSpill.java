@@ -0,0 +1,163 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.Int32;
+
+/**
+ * A file on the local disk of a task which holds tagged shuffle tuples that
+ * do not fit in memory. Tuples are written with the {@link TupleSerialization}
+ * of the job, which omits the key columns, so the join key is written in
+ * front of each tuple with the {@link KeyCodec}. The file is written once,
+ * read back once, and deleted afterwards.
+ * 
+ */
+public class TupleSpill {
+
+	private static final LocalDirAllocator ALLOCATOR = new LocalDirAllocator("mapred.local.dir");
+	
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+	
+	private final Configuration conf;
+	private final int[] keyIndexes;
+	private final FileSystem fs;
+	private final Path path;
+	
+	private DataOutputStream out;
+	private Serializer<Tuple> serializer;
+	private DataInputStream in;
+	private Deserializer<Tuple> deserializer;
+	private int count;
+	
+	/**
+	 * @param keyIndexes position of the key column for each tag
+	 */
+	public TupleSpill(Configuration conf, int[] keyIndexes) throws IOException
+	{
+		// spilled tuples are tagged shuffle tuples, whose schemas are
+		// resolved like in a map task even though we are in a reducer
+		this.conf = new Configuration(conf);
+		this.conf.setBoolean("mapred.task.is.map", true);
+		this.keyIndexes = keyIndexes;
+		this.fs = FileSystem.getLocal(conf);
+		this.path = ALLOCATOR.getLocalPathForWrite(
+				"brackit/spill_" + COUNTER.incrementAndGet() + ".out", conf);
+	}
+	
+	public void write(Tuple t) throws IOException
+	{
+		if (out == null) {
+			out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)));
+			serializer = new SerializationFactory(conf).getSerializer(Tuple.class);
+			serializer.open(out);
+		}
+		try {
+			int tag = ((Int32) t.array()[t.getSize() - 1]).v;
+			KeyCodec.encode(out, (Atomic) t.array()[keyIndexes[tag]], null);
+			serializer.serialize(t);
+			count++;
+		}
+		catch (QueryException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Returns the next tuple of the file or null at its end. The first call
+	 * finishes the writing phase.
+	 */
+	public Tuple read() throws IOException
+	{
+		if (in == null) {
+			if (out != null) {
+				serializer.close();
+				out = null;
+			}
+			if (count == 0) {
+				return null;
+			}
+			in = new DataInputStream(new BufferedInputStream(fs.open(path)));
+			deserializer = new SerializationFactory(conf).getDeserializer(Tuple.class);
+			deserializer.open(in);
+		}
+		if (count == 0) {
+			return null;
+		}
+		try {
+			Atomic key = KeyCodec.decode(in, null);
+			Tuple t = deserializer.deserialize(null);
+			int tag = ((Int32) t.array()[t.getSize() - 1]).v;
+			t.array()[keyIndexes[tag]] = key;
+			count--;
+			return t;
+		}
+		catch (EOFException e) {
+			throw new IOException("Spill file " + path + " is truncated", e);
+		}
+		catch (QueryException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	public int getCount()
+	{
+		return count;
+	}
+	
+	public void delete() throws IOException
+	{
+		if (out != null) {
+			serializer.close();
+			out = null;
+		}
+		if (in != null) {
+			deserializer.close();
+			in = null;
+		}
+		fs.delete(path, false);
+	}
+
+}
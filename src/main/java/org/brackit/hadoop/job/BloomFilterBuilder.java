@@ -0,0 +1,223 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.job;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQ;
+import org.brackit.xquery.compiler.XQExt;
+import org.brackit.xquery.util.Cfg;
+import org.brackit.xquery.xdm.Item;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.Tuple;
+
+/**
+ * Semi-join reduction for reduce-side joins. Before the join job is
+ * submitted, the build branch of its shuffle (tag 1) is run as a map-only job
+ * whose tasks insert the join keys into a Bloom filter instead of emitting
+ * tuples. The filters of all tasks are merged on the client and shipped to the
+ * join job through the distributed cache, where the probe branch (tag 0) drops
+ * tuples whose key is definitely not on the build side.
+ * 
+ * Keys are added by the hash code of the atomized join key, as extracted by
+ * XQGroupingKey, which is the value that the shuffle partitions on and the
+ * post join matches on.
+ * 
+ */
+public class BloomFilterBuilder {
+
+	private static final Log LOG = LogFactory.getLog(BloomFilterBuilder.class);
+	
+	public static final String FILTER_PREFIX = "bloom";
+	
+	private static boolean DELETE_EXISTING = Cfg.asBool(XQueryJobConf.PROP_DELETE_EXISTING, false);
+	
+	private final XQueryJob job;
+	private final Configuration conf;
+	
+	public BloomFilterBuilder(XQueryJob job, Configuration conf)
+	{
+		this.job = job;
+		this.conf = conf;
+	}
+	
+	public void build() throws IOException
+	{
+		XQueryJobConf jobConf = new XQueryJobConf(job.getConfiguration());
+		AST shuffle = jobConf.getAst();
+		while (shuffle != null && shuffle.getType() != XQExt.Shuffle && shuffle.getType() != XQ.Start) {
+			shuffle = shuffle.getLastChild();
+		}
+		if (shuffle == null || shuffle.getType() != XQExt.Shuffle || shuffle.getChildCount() != 2) {
+			return;
+		}
+		AST build = shuffle.getChild(1);
+		if (build.getChildCount() == 0) {
+			// output of a previous job: the filter would cost a full extra scan
+			return;
+		}
+		
+		AST buildAst = build.copyTree();
+		buildAst.setProperty("bloomBuild", true);
+		
+		XQueryJobConf bloomConf = new XQueryJobConf(conf);
+		bloomConf.setJobName(jobConf.getJobName() + "_bloom");
+		bloomConf.setAst(buildAst);
+		bloomConf.setStaticContext(jobConf.getStaticContext());
+		bloomConf.setRecordSchemas(jobConf.getRecordSchemas());
+		if (jobConf.get(XQueryJobConf.PROP_STRING_DICTIONARY) != null) {
+			bloomConf.set(XQueryJobConf.PROP_STRING_DICTIONARY, jobConf.get(XQueryJobConf.PROP_STRING_DICTIONARY));
+		}
+		bloomConf.setSeqNumber(jobConf.getSeqNumber());
+		Tuple tuple = jobConf.getTuple();
+		if (tuple != null) {
+			bloomConf.setTuple(tuple);
+		}
+		bloomConf.parseInputsAndOutputs();
+		
+		Path outPath = new Path(bloomConf.getOutputDir());
+		FileSystem fs = outPath.getFileSystem(bloomConf);
+		if (DELETE_EXISTING && fs.exists(outPath)) {
+			fs.delete(outPath, true);
+		}
+		
+		XQueryJob bloomJob = new XQueryJob(bloomConf);
+		bloomJob.setJarByClass(BloomFilterBuilder.class);
+		try {
+			if (!bloomJob.waitForCompletion(true)) {
+				throw new IOException("Bloom filter job execution returned non-zero response");
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		
+		// merge the filters of all build tasks
+		BloomFilter merged = createFilter(conf);
+		FileStatus[] parts = fs.listStatus(outPath, new PathFilter() {
+			public boolean accept(Path path) {
+				return path.getName().startsWith(FILTER_PREFIX + "-");
+			}
+		});
+		for (FileStatus part : parts) {
+			BloomFilter filter = new BloomFilter();
+			FSDataInputStream in = fs.open(part.getPath());
+			try {
+				filter.readFields(in);
+			}
+			finally {
+				in.close();
+			}
+			merged.or(filter);
+		}
+		
+		Path filterPath = fs.makeQualified(new Path(outPath, FILTER_PREFIX + "_" + jobConf.getSeqNumber() + ".filter"));
+		FSDataOutputStream out = fs.create(filterPath, true);
+		try {
+			merged.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		LOG.info(String.format("Merged %d Bloom filters into %s", parts.length, filterPath));
+		DistributedCache.addCacheFile(filterPath.toUri(), job.getConfiguration());
+		job.getConfiguration().set(XQueryJobConf.PROP_BLOOM_FILTER, filterPath.toString());
+	}
+	
+	public static BloomFilter createFilter(Configuration conf)
+	{
+		int vectorSize = conf.getInt(XQueryJobConf.PROP_BLOOM_VECTOR_SIZE, 8 * 1024 * 1024);
+		int hashes = conf.getInt(XQueryJobConf.PROP_BLOOM_HASHES, 5);
+		return new BloomFilter(vectorSize, hashes, Hash.MURMUR_HASH);
+	}
+	
+	/**
+	 * Returns the merged filter shipped with the job, or null if the job
+	 * performs no semi-join reduction.
+	 */
+	public static BloomFilter loadFilter(Configuration conf) throws IOException
+	{
+		String name = conf.get(XQueryJobConf.PROP_BLOOM_FILTER);
+		if (name == null) {
+			return null;
+		}
+		Path path = new Path(name);
+		FileSystem fs = path.getFileSystem(conf);
+		
+		// prefer the localized copy of the distributed cache
+		Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+		if (cached != null) {
+			for (Path c : cached) {
+				if (c.getName().equals(path.getName())) {
+					path = c;
+					fs = FileSystem.getLocal(conf);
+					break;
+				}
+			}
+		}
+		
+		BloomFilter filter = new BloomFilter();
+		FSDataInputStream in = fs.open(path);
+		try {
+			filter.readFields(in);
+		}
+		finally {
+			in.close();
+		}
+		return filter;
+	}
+	
+	public static Key key(Sequence joinKey) throws QueryException
+	{
+		Item item = (joinKey != null) ? joinKey.iterate().next() : null;
+		int hash = (item != null) ? XQGroupingKey.hashCode(item.atomize()) : 0;
+		return new Key(new byte[] {
+				(byte) (hash >>> 24), (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash });
+	}
+	
+}
@@ -0,0 +1,137 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.brackit.hadoop.collection.HadoopCSVCollection;
+import org.brackit.hadoop.io.StringDictionary;
+import org.brackit.xquery.util.Cfg;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.Str;
+
+/**
+ * Builds the string dictionary of a query (see {@link StringDictionary}) from
+ * a sample of the CSV collections it scans. Fields with few distinct strings
+ * in the sample, like flags and modes, are added in order of increasing
+ * cardinality as long as the dictionary does not overflow. Strings of other
+ * fields, or values missing in the sample, are written as plain strings.
+ * 
+ * The dictionary is fixed before the first job is submitted and shipped with
+ * the configuration of all jobs, so that all tasks, spills and intermediate
+ * outputs of the query use the same codes.
+ */
+public class DictionaryBuilder {
+
+	private static final Log LOG = LogFactory.getLog(DictionaryBuilder.class);
+	
+	private final Configuration conf;
+	private final List<HadoopCSVCollection> collections;
+	
+	public DictionaryBuilder(Configuration conf, List<HadoopCSVCollection> collections)
+	{
+		this.conf = conf;
+		this.collections = collections;
+	}
+	
+	public String[] build() throws IOException
+	{
+		int sampleSize = Cfg.asInt(XQueryJobConf.PROP_DICTIONARY_SAMPLE, 10000);
+		int maxCardinality = Cfg.asInt(XQueryJobConf.PROP_DICTIONARY_CARDINALITY, 32);
+		
+		List<Set<String>> candidates = new ArrayList<Set<String>>();
+		for (HadoopCSVCollection coll : collections) {
+			List<Atomic[]> records = coll.sample(conf, sampleSize);
+			if (records.isEmpty()) {
+				continue;
+			}
+			int len = records.get(0).length;
+			List<Set<String>> fields = new ArrayList<Set<String>>();
+			for (int i = 0; i < len; i++) {
+				fields.add(new HashSet<String>());
+			}
+			for (Atomic[] record : records) {
+				for (int i = 0; i < len && i < record.length; i++) {
+					Set<String> values = fields.get(i);
+					if (values == null) {
+						continue;
+					}
+					if (record[i] == null || record[i].getClass() != Str.class
+							|| values.size() > maxCardinality) {
+						// not a string field or too many distinct values
+						fields.set(i, null);
+						continue;
+					}
+					values.add(((Str) record[i]).str);
+				}
+			}
+			for (Set<String> values : fields) {
+				// few distinct values must repeat within the sample
+				if (values != null && !values.isEmpty() && values.size() <= maxCardinality
+						&& values.size() * 2 <= records.size()) {
+					candidates.add(values);
+				}
+			}
+		}
+		
+		Collections.sort(candidates, new Comparator<Set<String>>() {
+			@Override
+			public int compare(Set<String> a, Set<String> b)
+			{
+				return a.size() - b.size();
+			}
+		});
+		Set<String> dictionary = new HashSet<String>();
+		int used = 0;
+		for (Set<String> values : candidates) {
+			Set<String> merged = new HashSet<String>(dictionary);
+			merged.addAll(values);
+			if (merged.size() > StringDictionary.MAX_SIZE) {
+				break;
+			}
+			dictionary = merged;
+			used++;
+		}
+		
+		if (dictionary.isEmpty()) {
+			return null;
+		}
+		LOG.info(String.format("String dictionary with %d entries from %d fields", dictionary.size(), used));
+		return dictionary.toArray(new String[dictionary.size()]);
+	}
+
+}
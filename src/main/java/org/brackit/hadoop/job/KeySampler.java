@@ -0,0 +1,353 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.brackit.hadoop.io.BrackitInputFormat;
+import org.brackit.hadoop.io.BrackitInputSplit;
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.hadoop.runtime.XQRawKeyComparator;
+import org.brackit.hadoop.runtime.XQTask;
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQExt;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.atomic.Atomic;
+
+/**
+ * Computes the split points used by the {@link org.brackit.hadoop.runtime.XQRangePartitioner}
+ * of a global order by. The map phase of the job is executed on the client
+ * for a few evenly spaced input splits, each of which is cut off after a fixed
+ * number of input records. The shuffle keys it produces are collected in
+ * their serialized form, sorted, and the keys at the partition boundaries are
+ * stored in the job configuration. The same sampling is used to detect hot
+ * join keys of skewed joins.
+ * 
+ */
+public class KeySampler {
+
+	private static final Log LOG = LogFactory.getLog(KeySampler.class);
+	
+	private static final AtomicInteger SAMPLE_IDS = new AtomicInteger();
+	
+	private final XQueryJob job;
+	private final Configuration conf;
+	
+	public KeySampler(XQueryJob job)
+	{
+		this.job = job;
+		// sampling tasks run on the client but must behave as map tasks
+		this.conf = new Configuration(job.getConfiguration());
+		this.conf.setBoolean("mapred.task.is.map", true);
+	}
+	
+	public void sample() throws IOException
+	{
+		int numPartitions = job.getNumReduceTasks();
+		final List<byte[]> samples = new ArrayList<byte[]>();
+		final DataOutputBuffer buffer = new DataOutputBuffer();
+		final Serializer<XQGroupingKey> serializer = 
+				new SerializationFactory(conf).getSerializer(XQGroupingKey.class);
+		serializer.open(buffer);
+		
+		sampleSplits(-1, new RecordWriter<XQGroupingKey, Tuple>() {
+			@Override
+			public void write(XQGroupingKey key, Tuple value) throws IOException
+			{
+				buffer.reset();
+				serializer.serialize(key);
+				samples.add(Arrays.copyOf(buffer.getData(), buffer.getLength()));
+			}
+
+			@Override
+			public void close(TaskAttemptContext context)
+			{
+			}
+		});
+		serializer.close();
+		
+		final XQRawKeyComparator comparator = new XQRawKeyComparator();
+		Collections.sort(samples, new Comparator<byte[]>() {
+			public int compare(byte[] b1, byte[] b2) {
+				return comparator.compare(b1, 0, b1.length, b2, 0, b2.length);
+			}
+		});
+		
+		List<byte[]> splitPoints = new ArrayList<byte[]>(numPartitions - 1);
+		if (samples.size() > 0) {
+			for (int i = 1; i < numPartitions; i++) {
+				byte[] point = samples.get((int) ((long) i * samples.size() / numPartitions));
+				byte[] last = splitPoints.isEmpty() ? null : splitPoints.get(splitPoints.size() - 1);
+				// duplicate split points would yield empty partitions
+				if (last == null || comparator.compare(last, 0, last.length, point, 0, point.length) < 0) {
+					splitPoints.add(point);
+				}
+			}
+		}
+		
+		LOG.info(String.format("Sampled %d keys into %d split points", samples.size(), splitPoints.size()));
+		XQueryJobConf jobConf = new XQueryJobConf(job.getConfiguration());
+		jobConf.setRangeSplitPoints(splitPoints.toArray(new byte[splitPoints.size()][]));
+		job.getConfiguration().set(XQueryJobConf.PROP_RANGE_SPLIT_POINTS, 
+				jobConf.get(XQueryJobConf.PROP_RANGE_SPLIT_POINTS));
+	}
+
+	/**
+	 * Detects the heavy hitters among the join keys of the probe branch (tag 0)
+	 * of a join. A key is hot if its share of the sampled tuples exceeds the
+	 * skew threshold divided by the number of reducers, i.e., if it alone
+	 * would make up a considerable part of the input of a reducer. Each hot key
+	 * is assigned the number of reducers its probe tuples are spread across.
+	 * 
+	 * Only binary joins whose inputs both read collections are sampled. Merged
+	 * multi-way shuffles and inputs from previous jobs are skipped, and their
+	 * keys are shuffled without splitting.
+	 */
+	public void sampleHotKeys() throws IOException
+	{
+		XQueryJobConf jobConf = new XQueryJobConf(job.getConfiguration());
+		AST shuffle = jobConf.getAst();
+		while (shuffle != null && shuffle.getType() != XQExt.Shuffle) {
+			shuffle = shuffle.getLastChild();
+		}
+		if (shuffle == null) {
+			return;
+		}
+		if (shuffle.getChildCount() != 2) {
+			LOG.info(String.format("Not sampling hot keys of a %d-way join shuffle", 
+					shuffle.getChildCount()));
+			return;
+		}
+		if (shuffle.getChild(0).getChildCount() == 0 || shuffle.getChild(1).getChildCount() == 0) {
+			// inputs from previous jobs are not replicated by the id mapper
+			LOG.info("Not sampling hot keys of a join with inputs from a previous job");
+			return;
+		}
+		
+		int numPartitions = job.getNumReduceTasks();
+		float threshold = conf.getFloat(XQueryJobConf.PROP_SKEW_THRESHOLD, 0.5f);
+		final Map<Atomic, int[]> counts = new HashMap<Atomic, int[]>();
+		final int[] total = new int[1];
+		
+		sampleSplits(0, new RecordWriter<XQGroupingKey, Tuple>() {
+			@Override
+			public void write(XQGroupingKey key, Tuple value)
+			{
+				int[] count = counts.get(key.getKeyAt(0));
+				if (count == null) {
+					counts.put(key.getKeyAt(0), new int[] { 1 });
+				}
+				else {
+					count[0]++;
+				}
+				total[0]++;
+			}
+
+			@Override
+			public void close(TaskAttemptContext context)
+			{
+			}
+		});
+		
+		Map<Atomic, Integer> hotKeys = new HashMap<Atomic, Integer>();
+		for (Entry<Atomic, int[]> e : counts.entrySet()) {
+			float share = (float) e.getValue()[0] / total[0];
+			if (e.getValue()[0] > 1 && share * numPartitions > threshold) {
+				int fanOut = Math.min(numPartitions, 
+						Math.max(2, (int) Math.ceil(share * numPartitions / threshold)));
+				hotKeys.put(e.getKey(), fanOut);
+				LOG.info(String.format("Hot join key %s (%.1f%% of sample) is spread across %d reducers",
+						e.getKey(), share * 100, fanOut));
+			}
+		}
+		
+		LOG.info(String.format("Sampled %d join keys, %d of them are hot", total[0], hotKeys.size()));
+		if (!hotKeys.isEmpty()) {
+			jobConf.setHotKeys(hotKeys);
+			job.getConfiguration().set(XQueryJobConf.PROP_SKEW_KEYS, 
+					jobConf.get(XQueryJobConf.PROP_SKEW_KEYS));
+		}
+	}
+	
+	/**
+	 * Runs the map phase over a few evenly spaced splits (of the given shuffle
+	 * branch, or of all branches if negative) and passes its output to the
+	 * given writer.
+	 */
+	private void sampleSplits(int branch, RecordWriter<XQGroupingKey, Tuple> writer) throws IOException
+	{
+		int maxSplits = conf.getInt(XQueryJobConf.PROP_SAMPLE_SPLITS, 10);
+		int maxRecords = conf.getInt(XQueryJobConf.PROP_SAMPLE_RECORDS, 10000);
+		
+		try {
+			BrackitInputFormat<Object, Object> format = new BrackitInputFormat<Object, Object>();
+			List<InputSplit> splits = new ArrayList<InputSplit>();
+			for (InputSplit split : format.getSplits(new JobContext(conf, job.getJobID()))) {
+				if (branch < 0 || ((BrackitInputSplit) split).getAstBranch() == branch) {
+					splits.add(split);
+				}
+			}
+			// sampling tasks of different jobs must not share cached plans (see PlanCache)
+			int sampleId = SAMPLE_IDS.incrementAndGet();
+			int numSplits = Math.min(splits.size(), maxSplits);
+			int step = (numSplits > 0) ? splits.size() / numSplits : 0;
+			
+			for (int i = 0; i < numSplits; i++) {
+				InputSplit split = splits.get(i * step);
+				TaskAttemptID id = new TaskAttemptID("sample", sampleId, true, i, 0);
+				TaskAttemptContext context = new TaskAttemptContext(conf, id);
+				RecordReader<Object, Object> reader = 
+						new LimitedRecordReader(format.createRecordReader(split, context), maxRecords);
+				reader.initialize(split, context);
+				try {
+					sampleSplit(split, id, reader, writer);
+				}
+				catch (IOException e) {
+					// e.g., selections which filter the whole sample
+					LOG.warn("Sampling of split " + i + " failed: " + e.getMessage());
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void sampleSplit(InputSplit split, TaskAttemptID id, RecordReader<Object, Object> reader, 
+			RecordWriter<XQGroupingKey, Tuple> writer) throws IOException, InterruptedException
+	{
+		XQTask.XQMapper<Object, Object, XQGroupingKey, Tuple> mapper = 
+				new XQTask.XQMapper<Object, Object, XQGroupingKey, Tuple>();
+		Mapper<Object, Object, XQGroupingKey, Tuple>.Context context = 
+				mapper.new Context(conf, id, reader, writer, null, new SampleReporter(), split);
+		mapper.run(context);
+	}
+	
+	private static class LimitedRecordReader extends RecordReader<Object, Object> {
+		
+		private final RecordReader<Object, Object> reader;
+		private final int limit;
+		private int count;
+		
+		LimitedRecordReader(RecordReader<Object, Object> reader, int limit)
+		{
+			this.reader = reader;
+			this.limit = limit;
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) 
+				throws IOException, InterruptedException
+		{
+			reader.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException
+		{
+			return (count++ < limit) && reader.nextKeyValue();
+		}
+
+		@Override
+		public Object getCurrentKey() throws IOException, InterruptedException
+		{
+			return reader.getCurrentKey();
+		}
+
+		@Override
+		public Object getCurrentValue() throws IOException, InterruptedException
+		{
+			return reader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException
+		{
+			return Math.min(1.0f, (float) count / limit);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			reader.close();
+		}
+	}
+	
+	private static class SampleReporter extends StatusReporter {
+
+		@Override
+		public Counter getCounter(Enum<?> name)
+		{
+			return null;
+		}
+
+		@Override
+		public Counter getCounter(String group, String name)
+		{
+			return null;
+		}
+
+		@Override
+		public void progress()
+		{
+		}
+
+		@Override
+		public void setStatus(String status)
+		{
+		}
+	}
+	
+}
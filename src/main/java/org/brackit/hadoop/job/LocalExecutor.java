@@ -0,0 +1,662 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.job;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.brackit.hadoop.io.BrackitInputFormat;
+import org.brackit.hadoop.io.BrackitInputSplit;
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.hadoop.runtime.XQTask;
+import org.brackit.xquery.xdm.Tuple;
+
+/**
+ * Executes a job within the client process, which avoids the setup costs of
+ * Hadoop jobs for small inputs. Map and reduce tasks run on a thread pool.
+ * Map outputs are serialized, partitioned and sorted in memory with the
+ * comparators of the job. The outputs of intermediate jobs are kept in
+ * memory as well (see {@link Outputs}) and read by the id mappers of the
+ * consuming job; only the final result is written through the output format.
+ * 
+ * Combiners are not run, since map outputs are never spilled.
+ * 
+ */
+public class LocalExecutor {
+
+	private static final Log LOG = LogFactory.getLog(LocalExecutor.class);
+	
+	// job ids must be unique within the process (see PlanCache), which
+	// rules out the identifier "local" of Hadoop's LocalJobRunner
+	private static final String JOB_TRACKER_ID = "inproc" + System.currentTimeMillis();
+	private static final AtomicInteger JOB_IDS = new AtomicInteger();
+	
+	/**
+	 * In-memory outputs of the intermediate jobs of a query, i.e., the
+	 * serialized key/value records of each partition by output directory
+	 */
+	public static class Outputs {
+		
+		private final Map<String, List<List<byte[][]>>> outputs = new ConcurrentHashMap<String, List<List<byte[][]>>>();
+		
+		void put(String dir, List<List<byte[][]>> partitions)
+		{
+			outputs.put(key(dir), partitions);
+		}
+		
+		List<List<byte[][]>> get(String dir)
+		{
+			return outputs.get(key(dir));
+		}
+		
+		void remove(String dir)
+		{
+			outputs.remove(key(dir));
+		}
+		
+		private static String key(String dir)
+		{
+			return new Path(dir).toUri().getPath();
+		}
+	}
+	
+	private final XQueryJob job;
+	private final Configuration conf;
+	private final Outputs outputs;
+	private final JobID jobId;
+	private final int threads;
+	private final Counters counters = new Counters();
+	
+	public LocalExecutor(XQueryJob job, Outputs outputs)
+	{
+		this.job = job;
+		this.conf = job.getConfiguration();
+		this.outputs = outputs;
+		this.jobId = new JobID(JOB_TRACKER_ID, JOB_IDS.incrementAndGet());
+		this.threads = Math.max(1, conf.getInt(XQueryJobConf.PROP_LOCAL_THREADS, 
+				Runtime.getRuntime().availableProcessors()));
+	}
+	
+	public void run() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		final XQueryJobConf jobConf = new XQueryJobConf(conf);
+		final int numReduces = job.getNumReduceTasks();
+		final JobContext jobContext = new JobContext(conf, jobId);
+		
+		OutputFormat<?, ?> format = null;
+		OutputCommitter committer = null;
+		if (job.isRoot()) {
+			format = newOutputFormat();
+			try {
+				committer = format.getOutputCommitter(new TaskAttemptContext(conf, 
+						new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), false, 0, 0)));
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			committer.setupJob(jobContext);
+		}
+		final boolean writeOutput = (format != null);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// map phase
+			final List<InputSplit> splits = getSplits(jobContext);
+			List<Callable<List<List<byte[][]>>>> mapTasks = new ArrayList<Callable<List<List<byte[][]>>>>();
+			for (int i = 0; i < splits.size(); i++) {
+				final int task = i;
+				mapTasks.add(new Callable<List<List<byte[][]>>>() {
+					public List<List<byte[][]>> call() throws Exception {
+						return runMapTask(task, splits.get(task), numReduces, writeOutput);
+					}
+				});
+			}
+			List<List<List<byte[][]>>> mapOutputs = invokeAll(executor, mapTasks);
+			consumeInputs(jobConf);
+			
+			if (numReduces == 0) {
+				if (!job.isRoot()) {
+					outputs.put(jobConf.getOutputDir(), concat(mapOutputs));
+				}
+			}
+			else {
+				// shuffle and reduce phase
+				final List<List<byte[][]>> partitions = new ArrayList<List<byte[][]>>(numReduces);
+				for (int p = 0; p < numReduces; p++) {
+					List<byte[][]> partition = new ArrayList<byte[][]>();
+					for (List<List<byte[][]>> mapOutput : mapOutputs) {
+						partition.addAll(mapOutput.get(p));
+					}
+					partitions.add(partition);
+				}
+				mapOutputs = null;
+				
+				List<Callable<List<byte[][]>>> reduceTasks = new ArrayList<Callable<List<byte[][]>>>();
+				for (int p = 0; p < numReduces; p++) {
+					final int task = p;
+					reduceTasks.add(new Callable<List<byte[][]>>() {
+						public List<byte[][]> call() throws Exception {
+							List<byte[][]> input = partitions.get(task);
+							partitions.set(task, null);
+							return runReduceTask(task, input, writeOutput);
+						}
+					});
+				}
+				List<List<byte[][]>> reduceOutputs = invokeAll(executor, reduceTasks);
+				if (!job.isRoot()) {
+					outputs.put(jobConf.getOutputDir(), reduceOutputs);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		
+		if (committer != null) {
+			committer.commitJob(jobContext);
+		}
+		LOG.info(String.format("Local job %s completed in %d ms", jobConf.getJobName(), 
+				System.currentTimeMillis() - start));
+	}
+	
+	/*
+	 * Same splits as BrackitInputFormat, except that the intermediate inputs
+	 * which are held in memory yield one split per partition
+	 */
+	private List<InputSplit> getSplits(JobContext context) throws IOException
+	{
+		XQueryJobConf jobConf = new XQueryJobConf(conf);
+		List<InputSplit> result = new ArrayList<InputSplit>();
+		List<Class<? extends InputFormat<?, ?>>> formats = jobConf.getInputFormats();
+		String[] paths = jobConf.getInputPaths();
+		int pathIndex = 0;
+		try {
+			for (int i = 0; i < formats.size(); i++) {
+				Class<? extends InputFormat<?, ?>> cls = formats.get(i);
+				if (!FileInputFormat.class.isAssignableFrom(cls)) {
+					InputFormat<?, ?> format = ReflectionUtils.newInstance(cls, conf);
+					for (InputSplit split : format.getSplits(context)) {
+						result.add(new BrackitInputSplit(split, cls, i, conf));
+					}
+					continue;
+				}
+				
+				String path = paths[pathIndex++];
+				List<List<byte[][]>> partitions = SequenceFileInputFormat.class.equals(cls) ? outputs.get(path) : null;
+				if (partitions != null) {
+					for (int p = 0; p < partitions.size(); p++) {
+						result.add(new BrackitInputSplit(new MemorySplit(path, p), cls, i, conf));
+					}
+					continue;
+				}
+				
+				// look for splits of the file in this path only
+				InputFormat<?, ?> format = ReflectionUtils.newInstance(cls, conf);
+				String pathStr = new Path(path).toUri().getPath();
+				for (InputSplit split : format.getSplits(context)) {
+					String splitPath = ((FileSplit) split).getPath().toUri().getPath();
+					if (splitPath.indexOf(pathStr) > -1) {
+						result.add(new BrackitInputSplit(split, cls, i, conf));
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		return result;
+	}
+	
+	/*
+	 * Intermediate inputs are read by exactly one job
+	 */
+	private void consumeInputs(XQueryJobConf jobConf)
+	{
+		String[] paths = jobConf.getInputPaths();
+		if (paths != null) {
+			for (String path : paths) {
+				outputs.remove(path);
+			}
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<List<byte[][]>> runMapTask(int task, InputSplit split, int numReduces, boolean writeOutput)
+			throws IOException, InterruptedException
+	{
+		Configuration taskConf = new Configuration(conf);
+		taskConf.setBoolean("mapred.task.is.map", true);
+		TaskAttemptID id = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), true, task, 0);
+		TaskAttemptContext context = new TaskAttemptContext(taskConf, id);
+		
+		RecordReader reader;
+		InputSplit inner = ((BrackitInputSplit) split).getInputSplit();
+		if (inner instanceof MemorySplit) {
+			MemorySplit ms = (MemorySplit) inner;
+			reader = new MemoryRecordReader(outputs.get(ms.path).get(ms.partition), taskConf);
+		}
+		else {
+			reader = new BrackitInputFormat().createRecordReader(split, context);
+		}
+		reader.initialize(split, context);
+		
+		List<List<byte[][]>> result;
+		RecordWriter writer;
+		OutputCommitter committer = null;
+		if (numReduces > 0) {
+			// like Hadoop, bypass the partitioner if there is a single partition
+			Partitioner partitioner = null;
+			if (numReduces > 1) {
+				try {
+					partitioner = ReflectionUtils.newInstance(job.getPartitionerClass(), taskConf);
+				}
+				catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+			}
+			result = new ArrayList<List<byte[][]>>(numReduces);
+			for (int p = 0; p < numReduces; p++) {
+				result.add(new ArrayList<byte[][]>());
+			}
+			writer = new MemoryRecordWriter(result, partitioner, taskConf);
+		}
+		else if (writeOutput) {
+			OutputFormat format = newOutputFormat();
+			result = null;
+			writer = format.getRecordWriter(context);
+			committer = format.getOutputCommitter(context);
+			committer.setupTask(context);
+		}
+		else {
+			result = Collections.<List<byte[][]>>singletonList(new ArrayList<byte[][]>());
+			writer = new MemoryRecordWriter(result, null, taskConf);
+		}
+		
+		try {
+			XQTask.XQMapper mapper = new XQTask.XQMapper();
+			Mapper.Context mapContext = mapper.new Context(taskConf, id, reader, writer, committer, 
+					new LocalReporter(), split);
+			mapper.run(mapContext);
+		}
+		finally {
+			reader.close();
+			writer.close(context);
+		}
+		commit(committer, context);
+		return result;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<byte[][]> runReduceTask(int task, List<byte[][]> input, boolean writeOutput) 
+			throws IOException, InterruptedException
+	{
+		Configuration taskConf = new Configuration(conf);
+		taskConf.setBoolean("mapred.task.is.map", false);
+		TaskAttemptID id = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), false, task, 0);
+		TaskAttemptContext context = new TaskAttemptContext(taskConf, id);
+		
+		final RawComparator sortComparator = job.getSortComparator();
+		Collections.sort(input, new Comparator<byte[][]>() {
+			public int compare(byte[][] r1, byte[][] r2) {
+				return sortComparator.compare(r1[0], 0, r1[0].length, r2[0], 0, r2[0].length);
+			}
+		});
+		
+		List<byte[][]> result = null;
+		RecordWriter writer;
+		OutputCommitter committer = null;
+		if (writeOutput) {
+			OutputFormat format = newOutputFormat();
+			writer = format.getRecordWriter(context);
+			committer = format.getOutputCommitter(context);
+			committer.setupTask(context);
+		}
+		else {
+			result = new ArrayList<byte[][]>();
+			writer = new MemoryRecordWriter(Collections.singletonList(result), null, taskConf);
+		}
+		
+		try {
+			XQTask.XQReducer reducer = new XQTask.XQReducer();
+			Reducer.Context reduceContext = reducer.new Context(taskConf, id, new MemoryIterator(input),
+					counters.findCounter("local", "reduce input keys"),
+					counters.findCounter("local", "reduce input values"),
+					writer, committer, new LocalReporter(), job.getGroupingComparator(),
+					job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+			reducer.run(reduceContext);
+		}
+		finally {
+			writer.close(context);
+		}
+		commit(committer, context);
+		return result;
+	}
+	
+	/*
+	 * File output formats cache the committer (and thereby the work path) of
+	 * the first task attempt, so each task needs its own instance
+	 */
+	private OutputFormat<?, ?> newOutputFormat() throws IOException
+	{
+		try {
+			return ReflectionUtils.newInstance(job.getOutputFormatClass(), conf);
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private void commit(OutputCommitter committer, TaskAttemptContext context) throws IOException
+	{
+		if (committer != null && committer.needsTaskCommit(context)) {
+			committer.commitTask(context);
+		}
+	}
+	
+	private <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException
+	{
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		return results;
+	}
+	
+	private static List<List<byte[][]>> concat(List<List<List<byte[][]>>> taskOutputs)
+	{
+		List<List<byte[][]>> result = new ArrayList<List<byte[][]>>(taskOutputs.size());
+		for (List<List<byte[][]>> taskOutput : taskOutputs) {
+			result.add(taskOutput.get(0));
+		}
+		return result;
+	}
+	
+	/*
+	 * Partition of an intermediate output held in memory
+	 */
+	private static class MemorySplit extends InputSplit {
+		
+		final String path;
+		final int partition;
+		
+		MemorySplit(String path, int partition)
+		{
+			this.path = path;
+			this.partition = partition;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return 0;
+		}
+
+		@Override
+		public String[] getLocations()
+		{
+			return new String[0];
+		}
+	}
+	
+	/*
+	 * Serializes keys and values (as they would be written to a sequence
+	 * file or the map output) into the lists of their partitions
+	 */
+	private static class MemoryRecordWriter extends RecordWriter<XQGroupingKey, Tuple> {
+		
+		private final List<List<byte[][]>> partitions;
+		private final Partitioner<XQGroupingKey, Tuple> partitioner;
+		private final DataOutputBuffer buffer = new DataOutputBuffer();
+		private final Serializer<XQGroupingKey> keySerializer;
+		private final Serializer<Tuple> valueSerializer;
+		
+		MemoryRecordWriter(List<List<byte[][]>> partitions, Partitioner<XQGroupingKey, Tuple> partitioner,
+				Configuration conf) throws IOException
+		{
+			this.partitions = partitions;
+			this.partitioner = partitioner;
+			SerializationFactory factory = new SerializationFactory(conf);
+			keySerializer = factory.getSerializer(XQGroupingKey.class);
+			keySerializer.open(buffer);
+			valueSerializer = factory.getSerializer(Tuple.class);
+			valueSerializer.open(buffer);
+		}
+
+		@Override
+		public void write(XQGroupingKey key, Tuple value) throws IOException
+		{
+			int p = (partitioner != null) ? partitioner.getPartition(key, value, partitions.size()) : 0;
+			buffer.reset();
+			keySerializer.serialize(key);
+			int keyLength = buffer.getLength();
+			valueSerializer.serialize(value);
+			byte[] data = buffer.getData();
+			byte[][] record = new byte[][] {
+				Arrays.copyOfRange(data, 0, keyLength),
+				Arrays.copyOfRange(data, keyLength, buffer.getLength())
+			};
+			partitions.get(p).add(record);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context)
+		{
+		}
+	}
+	
+	private static class MemoryRecordReader extends RecordReader<XQGroupingKey, Tuple> {
+		
+		private final List<byte[][]> records;
+		private final DataInputBuffer buffer = new DataInputBuffer();
+		private final Deserializer<XQGroupingKey> keyDeserializer;
+		private final Deserializer<Tuple> valueDeserializer;
+		private int pos;
+		private XQGroupingKey key;
+		private Tuple value;
+		
+		MemoryRecordReader(List<byte[][]> records, Configuration conf) throws IOException
+		{
+			this.records = records;
+			SerializationFactory factory = new SerializationFactory(conf);
+			keyDeserializer = factory.getDeserializer(XQGroupingKey.class);
+			keyDeserializer.open(buffer);
+			valueDeserializer = factory.getDeserializer(Tuple.class);
+			valueDeserializer.open(buffer);
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context)
+		{
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException
+		{
+			if (pos >= records.size()) {
+				return false;
+			}
+			byte[][] record = records.get(pos++);
+			buffer.reset(record[0], record[0].length);
+			key = keyDeserializer.deserialize(null);
+			buffer.reset(record[1], record[1].length);
+			value = valueDeserializer.deserialize(null);
+			return true;
+		}
+
+		@Override
+		public XQGroupingKey getCurrentKey()
+		{
+			return key;
+		}
+
+		@Override
+		public Tuple getCurrentValue()
+		{
+			return value;
+		}
+
+		@Override
+		public float getProgress()
+		{
+			return records.isEmpty() ? 1.0f : (float) pos / records.size();
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+	
+	/*
+	 * Sorted reduce input
+	 */
+	private static class MemoryIterator implements RawKeyValueIterator {
+		
+		private final List<byte[][]> records;
+		private final DataInputBuffer key = new DataInputBuffer();
+		private final DataInputBuffer value = new DataInputBuffer();
+		private int pos;
+		
+		MemoryIterator(List<byte[][]> records)
+		{
+			this.records = records;
+		}
+
+		public DataInputBuffer getKey()
+		{
+			return key;
+		}
+
+		public DataInputBuffer getValue()
+		{
+			return value;
+		}
+
+		public boolean next()
+		{
+			if (pos >= records.size()) {
+				return false;
+			}
+			byte[][] record = records.get(pos++);
+			key.reset(record[0], record[0].length);
+			value.reset(record[1], record[1].length);
+			return true;
+		}
+
+		public void close()
+		{
+		}
+
+		public Progress getProgress()
+		{
+			return new Progress();
+		}
+	}
+	
+	private class LocalReporter extends StatusReporter {
+
+		@Override
+		public Counter getCounter(Enum<?> name)
+		{
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name)
+		{
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress()
+		{
+		}
+
+		@Override
+		public void setStatus(String status)
+		{
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.job;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Ships the serialized plan of a job (AST, static context and targets) in a
+ * file on the distributed cache instead of the job configuration, which is
+ * copied to every task and held by the JobTracker. Only the path and digest
+ * of the file remain in the configuration.
+ * 
+ * The file starts with a magic number and a format version, followed by the
+ * deflated list of (property name, serialized object) entries. Tasks
+ * memory-map the localized copy, verify the digest and keep the entries of
+ * the current plan for the other tasks of the JVM.
+ * 
+ */
+public class PlanFile {
+
+	private static final Log LOG = LogFactory.getLog(PlanFile.class);
+	
+	private static final int MAGIC = 0x42524B50; // "BRKP"
+	private static final byte VERSION = 1;
+	
+	private static final String[] PROPERTIES = new String[] {
+		XQueryJobConf.PROP_AST, XQueryJobConf.PROP_SCTX, XQueryJobConf.PROP_TARGETS
+	};
+	
+	private static String currentDigest;
+	private static Map<String, byte[]> currentEntries;
+	
+	/**
+	 * Moves the plan properties of the given job configuration into a plan
+	 * file at the given path and adds it to the distributed cache. Since
+	 * properties cannot be removed from a Hadoop 1 configuration, they are
+	 * set to the empty string.
+	 */
+	public static void ship(Configuration conf, Path path) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		DataOutputStream zout = new DataOutputStream(
+				new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION)));
+		int count = 0;
+		for (String name : PROPERTIES) {
+			if (isSet(conf.get(name))) {
+				count++;
+			}
+		}
+		zout.writeInt(count);
+		int plainSize = 0;
+		for (String name : PROPERTIES) {
+			String value = conf.get(name);
+			if (isSet(value)) {
+				byte[] data = Base64.decodeBase64(value);
+				zout.writeUTF(name);
+				zout.writeInt(data.length);
+				zout.write(data);
+				plainSize += value.length();
+			}
+		}
+		zout.close();
+		byte[] file = bos.toByteArray();
+		
+		FileSystem fs = path.getFileSystem(conf);
+		path = fs.makeQualified(path);
+		FSDataOutputStream fout = fs.create(path, true);
+		try {
+			fout.write(file);
+		}
+		finally {
+			fout.close();
+		}
+		
+		for (String name : PROPERTIES) {
+			if (isSet(conf.get(name))) {
+				conf.set(name, "");
+			}
+		}
+		conf.set(XQueryJobConf.PROP_PLAN_FILE, path.toString());
+		conf.set(XQueryJobConf.PROP_PLAN_DIGEST, digest(ByteBuffer.wrap(file)));
+		DistributedCache.addCacheFile(path.toUri(), conf);
+		
+		LOG.info(String.format("Shipping plan in %s (%d bytes instead of %d in the configuration)", 
+				path, file.length, plainSize));
+	}
+	
+	/**
+	 * Returns the serialized object stored under the given property in the
+	 * plan file of the job, or null if the job has no plan file
+	 */
+	public static byte[] get(Configuration conf, String name) throws IOException
+	{
+		String digest = conf.get(XQueryJobConf.PROP_PLAN_DIGEST);
+		if (digest == null) {
+			return null;
+		}
+		synchronized (PlanFile.class) {
+			if (!digest.equals(currentDigest)) {
+				currentEntries = load(conf, digest);
+				currentDigest = digest;
+			}
+			return currentEntries.get(name);
+		}
+	}
+	
+	private static Map<String, byte[]> load(Configuration conf, String digest) throws IOException
+	{
+		Path path = new Path(conf.get(XQueryJobConf.PROP_PLAN_FILE));
+		
+		// prefer the localized copy of the distributed cache
+		ByteBuffer buffer = null;
+		Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+		if (cached != null) {
+			for (Path c : cached) {
+				if (c.getName().equals(path.getName())) {
+					RandomAccessFile file = new RandomAccessFile(
+							FileSystem.getLocal(conf).pathToFile(c), "r");
+					try {
+						FileChannel channel = file.getChannel();
+						buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					}
+					finally {
+						file.close();
+					}
+					break;
+				}
+			}
+		}
+		if (buffer == null) {
+			FileSystem fs = path.getFileSystem(conf);
+			byte[] data = new byte[(int) fs.getFileStatus(path).getLen()];
+			FSDataInputStream in = fs.open(path);
+			try {
+				IOUtils.readFully(in, data, 0, data.length);
+			}
+			finally {
+				in.close();
+			}
+			buffer = ByteBuffer.wrap(data);
+		}
+		
+		if (!digest.equals(digest(buffer.duplicate()))) {
+			throw new IOException("Plan file " + path + " does not match the digest of the job");
+		}
+		
+		DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+		if (in.readInt() != MAGIC) {
+			throw new IOException(path + " is not a plan file");
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported plan file version " + version);
+		}
+		DataInputStream zin = new DataInputStream(new InflaterInputStream(in));
+		Map<String, byte[]> entries = new HashMap<String, byte[]>();
+		int count = zin.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = zin.readUTF();
+			byte[] data = new byte[zin.readInt()];
+			zin.readFully(data);
+			entries.put(name, data);
+		}
+		zin.close();
+		return entries;
+	}
+	
+	private static boolean isSet(String value)
+	{
+		return value != null && value.length() > 0;
+	}
+	
+	private static String digest(ByteBuffer data)
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(data);
+			return Hex.encodeHexString(md.digest());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static class BufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+	
+}
@@ -40,6 +40,7 @@ import org.brackit.hadoop.runtime.DummyComparator;
 import org.brackit.hadoop.runtime.XQGroupingKey;
 import org.brackit.hadoop.runtime.XQJoinKeyComparator;
 import org.brackit.hadoop.runtime.XQJoinKeyPartitioner;
+import org.brackit.hadoop.runtime.XQRangePartitioner;
 import org.brackit.hadoop.runtime.XQRawKeyComparator;
 import org.brackit.hadoop.runtime.XQTask;
 import org.brackit.xquery.compiler.AST;
@@ -54,6 +55,10 @@ public class XQueryJob extends Job {
 	private boolean isJoin = false;
 	private boolean skipSort = false;
 	private boolean isIdMapper = false;
+	private boolean totalOrder = false;
+	private boolean combine = false;
+	private boolean bloom = false;
+	private boolean skew = false;
 	
 	public XQueryJob(XQueryJobConf conf) throws IOException
 	{
@@ -83,6 +88,9 @@ public class XQueryJob extends Job {
 //			setSortComparatorClass(isJoin ? XQJoinKeyComparator.class : XQRawKeyComparator.class);
 //			setGroupingComparatorClass(isJoin ? XQJoinKeyComparator.class : XQRawKeyComparator.class);
 			if (isJoin) setPartitionerClass(XQJoinKeyPartitioner.class);
+			// split points are added by the KeySampler before submission
+			if (totalOrder) setPartitionerClass(XQRangePartitioner.class);
+			if (combine && !isJoin) setCombinerClass(XQTask.XQCombiner.class);
 		}
 		else {
 			setNumReduceTasks(0);
@@ -101,6 +109,10 @@ public class XQueryJob extends Job {
 			hasShuffle = true;
 			isJoin = node.checkProperty("isJoin");
 			skipSort = node.checkProperty("skipSort");
+			totalOrder = node.checkProperty("totalOrder");
+			combine = node.checkProperty("combine");
+			bloom = node.checkProperty("bloom");
+			skew = node.checkProperty("skew");
 			for (int i = 0; i < node.getChildCount(); i++) {
 				walkAst(node.getChild(i));
 			}
@@ -113,4 +125,24 @@ public class XQueryJob extends Job {
 		}
 	}
 	
+	public boolean isRoot()
+	{
+		return isRoot;
+	}
+	
+	public boolean isTotalOrder()
+	{
+		return totalOrder;
+	}
+	
+	public boolean isBloomJoin()
+	{
+		return isJoin && bloom;
+	}
+	
+	public boolean isSkewJoin()
+	{
+		return isJoin && skew;
+	}
+	
 }
@@ -29,13 +29,17 @@ package org.brackit.hadoop.job;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
@@ -48,8 +52,12 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.brackit.hadoop.collection.HadoopCollection;
+import org.brackit.hadoop.io.KeyCodec;
+import org.brackit.hadoop.io.MergeJoinInputFormat;
 import org.brackit.hadoop.io.RangeInputFormat;
+import org.brackit.hadoop.io.StringDictionary;
 import org.brackit.hadoop.runtime.DummySort;
+import org.brackit.xquery.QueryException;
 import org.brackit.xquery.compiler.AST;
 import org.brackit.xquery.compiler.Targets;
 import org.brackit.xquery.compiler.XQ;
@@ -62,6 +70,9 @@ import org.brackit.xquery.xdm.Collection;
 import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
 import org.brackit.xquery.xdm.TupleImpl;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.QNm;
+import org.brackit.xquery.xdm.type.SequenceType;
 
 public class XQueryJobConf extends JobConf {
 
@@ -95,16 +106,50 @@ public class XQueryJobConf extends JobConf {
 	public static final String PROP_INPUT_PATHS = "org.brackit.hadoop.inputPaths";
 	public static final String PROP_RANGE_INPUT = "org.brackit.hadoop.rangeInput";
 	public static final String PROP_HASH_TABLE_SIZE = "org.brackit.hadoop.joinHashTableSize";
-	public static final String PROP_HASH_BUCKET_SIZE = "org.brackit.hadoop.joinHashBucketSize";
+	public static final String PROP_JOIN_MEMORY_TUPLES = "org.brackit.hadoop.joinMemoryTuples";
+	public static final String PROP_JOIN_SPILL_PARTITIONS = "org.brackit.hadoop.joinSpillPartitions";
 	public static final String PROP_DELETE_EXISTING = "org.brackit.hadoop.deleteExisting";
 	public static final String PROP_SKIP_HADOOP_SORT = "org.brackit.hadoop.skipHadoopSort";
 	public static final String PROP_RANDOM_COMPARATOR = "org.brackit.hadoop.randomComparator";
 	public static final String PROP_HASH_GROUP_BY = "org.brackit.hadoop.hashGroupBy";
 	public static final String PROP_HASH_JOIN_PARTITIONS = "org.brackit.hadoop.hashJoinPartitions";
 	public static final String PROP_COMPUTE_HASH_TABLE_STATS = "org.brackit.hadoop.computeHashTableStats";
-	public static final String PROP_REPLICATE_TO_DISTR_CACHE = "org.brackit,hadoop.replicateToDistrCache";
-	public static final String PROP_REPLICATE_THRESHOLD = "org.brackit,hadoop.replicateThreshold";
+	public static final String PROP_REPLICATE_TO_DISTR_CACHE = "org.brackit.hadoop.replicateToDistrCache";
+	public static final String PROP_REPLICATE_THRESHOLD = "org.brackit.hadoop.replicateThreshold";
 	public static final String PROP_RAW_ID_MAPPER = "org.brackit.hadoop.rawIdMapper";
+	public static final String PROP_RANGE_SPLIT_POINTS = "org.brackit.hadoop.rangeSplitPoints";
+	public static final String PROP_SAMPLE_SPLITS = "org.brackit.hadoop.sampleSplits";
+	public static final String PROP_SAMPLE_RECORDS = "org.brackit.hadoop.sampleRecords";
+	public static final String PROP_PRE_AGGREGATE = "org.brackit.hadoop.preAggregate";
+	public static final String PROP_PRE_AGGREGATE_GROUPS = "org.brackit.hadoop.preAggregateGroups";
+	public static final String PROP_PRE_AGGREGATE_FREE_MEMORY = "org.brackit.hadoop.preAggregateFreeMemory";
+	public static final String PROP_COMBINER = "org.brackit.hadoop.combiner";
+	public static final String PROP_SKEW_JOIN = "org.brackit.hadoop.skewJoin";
+	public static final String PROP_SKEW_THRESHOLD = "org.brackit.hadoop.skewThreshold";
+	public static final String PROP_SKEW_KEYS = "org.brackit.hadoop.skewKeys";
+	public static final String PROP_MULTIWAY_JOIN = "org.brackit.hadoop.multiwayJoin";
+	public static final String PROP_PLAN_SHIPPING = "org.brackit.hadoop.planShipping";
+	public static final String PROP_PLAN_FILE = "org.brackit.hadoop.planFile";
+	public static final String PROP_PLAN_DIGEST = "org.brackit.hadoop.planDigest";
+	public static final String PROP_PLAN_CACHE = "org.brackit.hadoop.planCache";
+	public static final String PROP_LOCAL_MODE = "org.brackit.hadoop.localMode";
+	public static final String PROP_LOCAL_THRESHOLD = "org.brackit.hadoop.localThreshold";
+	public static final String PROP_LOCAL_THREADS = "org.brackit.hadoop.localThreads";
+	public static final String PROP_RECORD_SCHEMAS = "org.brackit.hadoop.recordSchemas";
+	public static final String PROP_DICTIONARY_ENCODING = "org.brackit.hadoop.dictionaryEncoding";
+	public static final String PROP_DICTIONARY_SAMPLE = "org.brackit.hadoop.dictionarySample";
+	public static final String PROP_DICTIONARY_CARDINALITY = "org.brackit.hadoop.dictionaryCardinality";
+	public static final String PROP_STRING_DICTIONARY = "org.brackit.hadoop.stringDictionary";
+	public static final String PROP_PARALLEL_JOBS = "org.brackit.hadoop.parallelJobs";
+	public static final String PROP_PREDICATE_PUSHDOWN = "org.brackit.hadoop.predicatePushdown";
+	public static final String PROP_FIELD_PUSHDOWN = "org.brackit.hadoop.fieldPushdown";
+	public static final String PROP_DEAD_COLUMNS = "org.brackit.hadoop.deadColumns";
+	public static final String PROP_MAP_MERGE_JOIN = "org.brackit.hadoop.mapMergeJoin";
+	public static final String PROP_MERGE_INPUTS = "org.brackit.hadoop.mergeInputs";
+	public static final String PROP_BLOOM_JOIN = "org.brackit.hadoop.bloomJoin";
+	public static final String PROP_BLOOM_VECTOR_SIZE = "org.brackit.hadoop.bloomVectorSize";
+	public static final String PROP_BLOOM_HASHES = "org.brackit.hadoop.bloomHashes";
+	public static final String PROP_BLOOM_FILTER = "org.brackit.hadoop.bloomFilter";
 	
 	public static final String PROP_MAPPER_SORT = "map.sort.class";
 	public static final String PROP_JOB_TRACKER = "mapred.job.tracker";
@@ -127,7 +172,7 @@ public class XQueryJobConf extends JobConf {
 	public AST getAst()
 	{
 		if (ast == null) {
-			ast = (AST) base64ToObject(get(PROP_AST));
+			ast = (AST) planObject(PROP_AST);
 		}
 		return ast;
 	}
@@ -141,7 +186,7 @@ public class XQueryJobConf extends JobConf {
 	public StaticContext getStaticContext()
 	{
 		if (sctx == null) {
-			sctx = (StaticContext) base64ToObject(get(PROP_SCTX));
+			sctx = (StaticContext) planObject(PROP_SCTX);
 		}
 		return sctx;
 	}
@@ -197,7 +242,161 @@ public class XQueryJobConf extends JobConf {
 	
 	public Targets getTargets()
 	{
-		return (Targets) base64ToObject(get(PROP_TARGETS));
+		return (Targets) planObject(PROP_TARGETS);
+	}
+	
+	/*
+	 * Plan objects are either stored in the configuration or, if the
+	 * property was emptied, in the plan file of the job (see PlanFile)
+	 */
+	private Object planObject(String name)
+	{
+		String b64 = get(name);
+		if (b64 == null || b64.length() > 0) {
+			return base64ToObject(b64);
+		}
+		String planFile = get(PROP_PLAN_FILE) + " (digest " + get(PROP_PLAN_DIGEST) + ")";
+		byte[] data;
+		try {
+			data = PlanFile.get(this, name);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Cannot read " + name + " from plan file " + planFile, e);
+		}
+		Object object = bytesToObject(data);
+		if (object == null) {
+			throw new IllegalStateException("Missing or corrupt " + name + " in plan file " + planFile);
+		}
+		return object;
+	}
+	
+	/*
+	 * Field names of the record collections of the query, shared by all its
+	 * jobs for the serialization of records (see RecordCodec)
+	 */
+	public void setRecordSchemas(ArrayList<QNm[]> schemas)
+	{
+		if (schemas != null) {
+			set(PROP_RECORD_SCHEMAS, objectToBase64(schemas));
+		}
+	}
+	
+	public ArrayList<QNm[]> getRecordSchemas()
+	{
+		return getRecordSchemas(this);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public static ArrayList<QNm[]> getRecordSchemas(Configuration conf)
+	{
+		return (ArrayList<QNm[]>) base64ToObject(conf.get(PROP_RECORD_SCHEMAS));
+	}
+	
+	public void setStringDictionary(String[] values)
+	{
+		if (values != null) {
+			set(PROP_STRING_DICTIONARY, objectToBase64(values));
+		}
+	}
+	
+	public static StringDictionary getStringDictionary(Configuration conf)
+	{
+		String[] values = (String[]) base64ToObject(conf.get(PROP_STRING_DICTIONARY));
+		return (values != null) ? new StringDictionary(values) : null;
+	}
+	
+	public void setRangeSplitPoints(byte[][] splitPoints)
+	{
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(splitPoints.length);
+			for (byte[] point : splitPoints) {
+				dos.writeInt(point.length);
+				dos.write(point);
+			}
+			dos.close();
+			set(PROP_RANGE_SPLIT_POINTS, Base64.encodeBase64String(bos.toByteArray()));
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	public byte[][] getRangeSplitPoints()
+	{
+		String str = get(PROP_RANGE_SPLIT_POINTS);
+		if (str == null) {
+			return null;
+		}
+		try {
+			DataInputStream dis = 
+					new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(str)));
+			byte[][] splitPoints = new byte[dis.readInt()][];
+			for (int i = 0; i < splitPoints.length; i++) {
+				splitPoints[i] = new byte[dis.readInt()];
+				dis.readFully(splitPoints[i]);
+			}
+			dis.close();
+			return splitPoints;
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+	}
+	
+	/**
+	 * Stores the hot join keys of a skewed join together with the number of
+	 * reducers each of them is spread across
+	 */
+	public void setHotKeys(Map<Atomic, Integer> hotKeys)
+	{
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(hotKeys.size());
+			for (Entry<Atomic, Integer> e : hotKeys.entrySet()) {
+				dos.writeInt(e.getValue());
+				KeyCodec.encode(dos, e.getKey(), null);
+			}
+			dos.close();
+			set(PROP_SKEW_KEYS, Base64.encodeBase64String(bos.toByteArray()));
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+		}
+		catch (QueryException e) {
+			e.printStackTrace(System.err);
+		}
+	}
+	
+	public Map<Atomic, Integer> getHotKeys()
+	{
+		String str = get(PROP_SKEW_KEYS);
+		if (str == null) {
+			return null;
+		}
+		try {
+			DataInputStream dis = 
+					new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(str)));
+			int size = dis.readInt();
+			Map<Atomic, Integer> hotKeys = new HashMap<Atomic, Integer>(size * 2);
+			for (int i = 0; i < size; i++) {
+				int fanOut = dis.readInt();
+				hotKeys.put(KeyCodec.decode(dis, null), fanOut);
+			}
+			dis.close();
+			return hotKeys;
+		}
+		catch (IOException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+		catch (QueryException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
 	}
 	
 	public void setSeqNumber(int seq)
@@ -227,7 +426,10 @@ public class XQueryJobConf extends JobConf {
 			return;
 		}
 		
-		if (node.getType() == XQExt.Shuffle) {
+		if (node.getType() == XQExt.Shuffle && isCoPartitionedJoin(node)) {
+			mapMergeJoin(node);
+		}
+		else if (node.getType() == XQExt.Shuffle) {
 			for (int i = 0; i < node.getChildCount(); i++) {
 				AST start = node.getChild(i);
 				Integer inputSeq = (Integer) start.getProperty("inputSeq");
@@ -249,6 +451,7 @@ public class XQueryJobConf extends JobConf {
 		else {
 			parseForBind(node.getParent());
 		}
+		parseMapJoins(getAst());
 		
 		FileOutputFormat.setOutputPath(this, new Path(getOutputDir()));
 		
@@ -269,6 +472,88 @@ public class XQueryJobConf extends JobConf {
 //		}
 	}
 	
+	/*
+	 * Both inputs of the join are outputs of previous jobs which are
+	 * hash-partitioned into the same number of files and sorted by the join key
+	 * (see HadoopExpr), so that the i-th files of both can be merged in a map task
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean isCoPartitionedJoin(AST shuffle)
+	{
+		if (!shuffle.checkProperty("isJoin") || shuffle.getChildCount() != 2 ||
+				shuffle.getParent().getParent().getType() != XQExt.PostJoin ||
+				!getBoolean(PROP_MAP_MERGE_JOIN, true))
+		{
+			return false;
+		}
+		String keyType = null;
+		Integer partitions = null;
+		for (int i = 0; i < 2; i++) {
+			AST input = shuffle.getChild(i);
+			if (input.getProperty("inputSeq") == null || input.getChildCount() > 0) {
+				return false;
+			}
+			Integer sortedBy = (Integer) input.getProperty("sortedBy");
+			List<Integer> keyIndexes = (List<Integer>) input.getProperty("keyIndexes");
+			if (sortedBy == null || keyIndexes.size() != 1 || !sortedBy.equals(keyIndexes.get(0))) {
+				return false;
+			}
+			// same key type, same number of partitions -> same partition for the same key
+			String type = ((List<SequenceType>) input.getProperty("types")).get(sortedBy).toString();
+			if (i == 0) {
+				keyType = type;
+				partitions = (Integer) input.getProperty("partitions");
+			}
+			else if (!keyType.equals(type) || !partitions.equals(input.getProperty("partitions"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Replaces the post join and its shuffle by a merge join of the
+	 * intermediate inputs, which turns this job into a map-only job
+	 */
+	private void mapMergeJoin(AST shuffle)
+	{
+		AST postJoin = shuffle.getParent().getParent();
+		AST mergeJoin = XQExt.createNode(XQExt.MergeJoin);
+		mergeJoin.setProperty("isJoin", true);
+		mergeJoin.setProperty("typesMap", shuffle.getProperty("typesMap"));
+		mergeJoin.setProperty("keyIndexesMap", shuffle.getProperty("keyIndexesMap"));
+		StringBuilder inputs = new StringBuilder();
+		for (int i = 0; i < shuffle.getChildCount(); i++) {
+			AST input = shuffle.getChild(i);
+			mergeJoin.addChild(input.copy());
+			inputs.append(i == 0 ? "" : ",");
+			inputs.append(OUTPUT_DIR + getJobName() + "_temp_" + input.getProperty("inputSeq"));
+		}
+		postJoin.getParent().replaceChild(postJoin.getChildIndex(), mergeJoin);
+		setAst(getAst());
+		
+		addInputFormat(MergeJoinInputFormat.class.getName());
+		set(PROP_MERGE_INPUTS, inputs.toString());
+	}
+	
+	/*
+	 * Build inputs of map-side joins are not map inputs, but their collections
+	 * must be shipped to the tasks
+	 */
+	private void parseMapJoins(AST node) throws IOException
+	{
+		if (node.getType() == XQExt.MapJoin) {
+			AST start = node.getChild(0);
+			while (start.getType() != XQ.Start) {
+				start = start.getLastChild();
+			}
+			parseForBind(start.getParent());
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			parseMapJoins(node.getChild(i));
+		}
+	}
+	
 	private void parseForBind(AST bind) throws IOException
 	{
 		StaticContext sctx = getStaticContext();
@@ -390,7 +675,14 @@ public class XQueryJobConf extends JobConf {
 		if (b64 == null) {
 			return null;
 		}
-		byte[] data = Base64.decodeBase64(b64.getBytes());
+		return bytesToObject(Base64.decodeBase64(b64.getBytes()));
+	}
+	
+	public static Object bytesToObject(byte[] data)
+	{
+		if (data == null) {
+			return null;
+		}
 		try {
 			ByteArrayInputStream bis = new ByteArrayInputStream(data);
 			ObjectInputStream ois = new ObjectInputStream(bis);
@@ -1,12 +1,27 @@
 package org.brackit.hadoop.runtime;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobID;
 import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryException;
 
+/**
+ * Client-side state of the jobs of a query. Jobs are attached when they are
+ * submitted and completed when they finished successfully, which is used to
+ * schedule independent jobs concurrently (see HadoopExpr). If a job fails,
+ * the jobs which are still running are killed.
+ * 
+ */
 public class ClientContext {
 
+	private static final Log LOG = LogFactory.getLog(ClientContext.class);
+	
 	private JobID[] jobIds;
+	private Job[] jobs;
+	private boolean[] completed;
+	private boolean aborted;
 	
 	public ClientContext()
 	{	
@@ -26,10 +41,62 @@ public class ClientContext {
 		}
 		jobIds[seq] = jobId;
 	}
-
+	
+	public synchronized void attachJob(int seq, Job job) throws QueryException
+	{
+		attachJob(seq, job.getJobID());
+		jobs[seq] = job;
+		if (aborted) {
+			// submitted while the query was being aborted
+			kill(job);
+			throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
+					"Job " + job.getJobID() + " was killed because the query was aborted");
+		}
+	}
+	
+	public synchronized void completeJob(int seq)
+	{
+		completed[seq] = true;
+		jobs[seq] = null;
+	}
+	
+	public synchronized boolean isCompleted(int seq)
+	{
+		return completed[seq];
+	}
+	
+	/**
+	 * Kills all running jobs and any job submitted afterwards
+	 */
+	public synchronized void abort()
+	{
+		aborted = true;
+		for (int i = 0; i < jobs.length; i++) {
+			if (jobs[i] != null && !completed[i]) {
+				kill(jobs[i]);
+				jobs[i] = null;
+			}
+		}
+	}
+	
+	private void kill(Job job)
+	{
+		try {
+			if (!job.isComplete()) {
+				LOG.info("Killing job " + job.getJobID());
+				job.killJob();
+			}
+		}
+		catch (Exception e) {
+			LOG.warn("Could not kill job " + job.getJobID() + ": " + e.getMessage());
+		}
+	}
 
 	public synchronized void init(int size)
 	{
 		jobIds = new JobID[size];
+		jobs = new Job[size];
+		completed = new boolean[size];
+		aborted = false;
 	}
 }
@@ -0,0 +1,123 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.runtime;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.expr.Expr;
+import org.brackit.xquery.xdm.Tuple;
+
+/**
+ * Keeps the translated plans of a job across the tasks executed by a (reused)
+ * JVM, so that only the first task of a job deserializes the AST, static
+ * context and targets from the configuration and translates them.
+ * 
+ * Plans are keyed by the job and the part of the query a task executes (a
+ * branch of the map phase, the combiner or the reducer). Since operators keep
+ * state while being evaluated, a plan is leased to one task at a time and
+ * concurrent tasks (e.g., of the local executor) translate plans of their
+ * own. All plans are evicted as soon as a task of another job asks for one.
+ * 
+ */
+public final class PlanCache {
+
+	private static final Log LOG = LogFactory.getLog(PlanCache.class);
+	
+	public static final String REDUCE = "reduce";
+	public static final String COMBINE = "combine";
+	
+	/**
+	 * A translated plan, i.e., the expression evaluated by a task together
+	 * with the AST node it was translated from and the input tuple of the job
+	 */
+	public static class Plan {
+		public final Expr expr;
+		public final AST node;
+		public final Tuple tuple;
+		
+		public Plan(Expr expr, AST node, Tuple tuple)
+		{
+			this.expr = expr;
+			this.node = node;
+			this.tuple = tuple;
+		}
+	}
+	
+	private static String currentJob;
+	private static final Map<String, LinkedList<Plan>> plans = new HashMap<String, LinkedList<Plan>>();
+	
+	private PlanCache()
+	{
+	}
+	
+	public static String mapKey(int branch)
+	{
+		return "map" + branch;
+	}
+	
+	/**
+	 * Returns an idle plan of the given job, or null if the task has to
+	 * translate its own
+	 */
+	public static synchronized Plan acquire(String job, String key)
+	{
+		if (!job.equals(currentJob)) {
+			if (currentJob != null) {
+				LOG.info(String.format("Evicting plans of job %s", currentJob));
+			}
+			plans.clear();
+			currentJob = job;
+			return null;
+		}
+		LinkedList<Plan> idle = plans.get(key);
+		return (idle == null) ? null : idle.poll();
+	}
+	
+	/**
+	 * Returns a plan after its task completed, so that it can be
+	 * reused by the next task of the same job
+	 */
+	public static synchronized void release(String job, String key, Plan plan)
+	{
+		if (!job.equals(currentJob)) {
+			return;
+		}
+		LinkedList<Plan> idle = plans.get(key);
+		if (idle == null) {
+			idle = new LinkedList<Plan>();
+			plans.put(key, idle);
+		}
+		idle.add(plan);
+	}
+	
+}
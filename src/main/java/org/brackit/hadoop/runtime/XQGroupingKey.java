@@ -29,17 +29,25 @@ package org.brackit.hadoop.runtime;
 
 import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.Item;
 import org.brackit.xquery.xdm.Iter;
 import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
 import org.brackit.xquery.xdm.atomic.Atomic;
 import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Numeric;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.atomic.Una;
 
 public class XQGroupingKey implements Comparable<XQGroupingKey> {
 
 	protected final Atomic[] keys;
 	protected final int[] indexes;
 	
+	// spreads a hot join key across reducers; not serialized, the partitioner
+	// consults it on the map side
+	private int salt;
+	
 	public XQGroupingKey(Atomic[] keys, int[] indexes) throws QueryException
 	{
 		this.keys = keys;
@@ -48,47 +56,114 @@ public class XQGroupingKey implements Comparable<XQGroupingKey> {
 	
 	public XQGroupingKey(Tuple tuple, boolean isJoin, int tag, int ... indexes) throws QueryException
 	{
-		this.keys = new Atomic[indexes.length + (isJoin ? 1 : 0)];
-		this.indexes = indexes;
+		this(indexes, isJoin, tag);
+		fill(tuple);
 		
-		int j = 0;
 		for (int i : indexes) {
-			Sequence seq = tuple.get(i);
-			Iter iter = seq.iterate();
-			keys[j] = iter.next().atomize();
-			
-			if (iter.next() != null) {
-				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR, 
-						"Grouping keys may only contain atomic values!");
-			}
-			
-			j++;
-			
 			if (!isJoin || i != tuple.getSize() - 1) { // TODO join hack
 				tuple.array()[i] = null;
 			}
 		}
+	}
+	
+	/**
+	 * Creates an empty key, which is filled with the key columns of every
+	 * tuple emitted by a task (see {@link #reset(Tuple)})
+	 */
+	public XQGroupingKey(int[] indexes, boolean isJoin, int tag)
+	{
+		this.keys = new Atomic[indexes.length + (isJoin ? 1 : 0)];
+		this.indexes = indexes;
 		if (isJoin) {
 			keys[keys.length - 1] = new Int32(tag);
 		}
 	}
 	
+	/**
+	 * Replaces the key values with those of the given tuple. The tuple
+	 * itself is not modified.
+	 */
+	public void reset(Tuple tuple) throws QueryException
+	{
+		salt = 0;
+		fill(tuple);
+	}
+	
+	private void fill(Tuple tuple) throws QueryException
+	{
+		for (int j = 0; j < indexes.length; j++) {
+			Sequence seq = tuple.get(indexes[j]);
+			keys[j] = null;
+			if (seq != null) {
+				// empty sequences are represented by null keys
+				Iter iter = seq.iterate();
+				Item item = iter.next();
+				keys[j] = (item != null) ? item.atomize() : null;
+				
+				if (item != null && iter.next() != null) {
+					throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR, 
+							"Grouping keys may only contain atomic values!");
+				}
+			}
+		}
+	}
+	
 	public Atomic[] getKeys() {
 		return keys;
 	}
 	
+	public int[] getIndexes() {
+		return indexes;
+	}
+	
 	public Atomic getKeyAt(int index) {
 		return keys[index];
 	}
-
+	
+	public int getSalt() {
+		return salt;
+	}
+	
+	public void setSalt(int salt)
+	{
+		this.salt = salt;
+	}
+	
+	/**
+	 * Hash code of a key value that is consistent with the comparison of
+	 * keys: numerics are hashed by their double value, which is the same for
+	 * all numerics that compare equal (integral values hash like longs), and
+	 * untyped atomics are hashed like strings.
+	 */
+	public static int hashCode(Atomic key)
+	{
+		if (key == null) {
+			return 0;
+		}
+		if (key instanceof Numeric) {
+			double d = ((Numeric) key).doubleValue();
+			long v = (long) d;
+			if (v != d) {
+				v = Double.doubleToLongBits(d);
+			}
+			return (int) (v ^ (v >>> 32));
+		}
+		if (key instanceof Str) {
+			return ((Str) key).str.hashCode();
+		}
+		if (key instanceof Una) {
+			return ((Una) key).str.hashCode();
+		}
+		return key.hashCode();
+	}
+	
 	@Override
 	public int hashCode()
 	{
-		// TODO: implement efficient type-dependent hash code
 		int hash = 137;
 		int multiplier = 13;
 		for (int i = 0; i < keys.length; i++) {
-			hash = hash * multiplier + keys[i].hashCode();
+			hash = hash * multiplier + hashCode(keys[i]);
 		}
 		return hash;
 	}
@@ -96,22 +171,22 @@ public class XQGroupingKey implements Comparable<XQGroupingKey> {
 	// this ignores the last key, which is by assumption the tag in case of a join
 	public int joinHashCode()
 	{
-		// TODO: implement efficient type-dependent hash code
 		if (keys.length > 2) {
 			int hash = 79;
 			int multiplier = 31;
 			for (int i = 0; i < keys.length - 1; i++) {
-				hash = hash * multiplier + keys[i].hashCode();
+				hash = hash * multiplier + hashCode(keys[i]);
 			}
 			return hash;
 		}
-		return keys[0].hashCode();
+		return hashCode(keys[0]);
 	}
 
 	public int compareTo(XQGroupingKey other)
 	{
-		for (int i = 0; i < keys.length; i++) {
-			int cmp = keys[i].compareTo(other.keys[i]);
+		int len = Math.min(keys.length, other.keys.length);
+		for (int i = 0; i < len; i++) {
+			int cmp = compareKeys(keys[i], other.keys[i]);
 			if (cmp != 0) {
 				return cmp;
 			}
@@ -124,6 +199,27 @@ public class XQGroupingKey implements Comparable<XQGroupingKey> {
 		return 0;
 	}
 	
+	// empty keys are considered equal to each other and less than any value
+	private static int compareKeys(Atomic a, Atomic b)
+	{
+		if (a == null || b == null) {
+			return (a == null) ? ((b == null) ? 0 : -1) : 1;
+		}
+		return a.compareTo(b);
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof XQGroupingKey)) {
+			return false;
+		}
+		return compareTo((XQGroupingKey) obj) == 0;
+	}
+	
 	public int joinCompareTo(XQGroupingKey other)
 	{
 		return keys[keys.length - 1].atomicCmp(other.keys[other.keys.length - 1]);
@@ -147,7 +243,7 @@ public class XQGroupingKey implements Comparable<XQGroupingKey> {
 		
 		StringBuffer sb = new StringBuffer("[");
 		for (int i = 0; i < keys.length; i++) {
-			sb.append(keys[i].stringValue());
+			sb.append(keys[i] != null ? keys[i].stringValue() : "()");
 			if (i < keys.length - 1) sb.append("; ");
 		}
 		sb.append(']');
@@ -171,7 +267,5 @@ public class XQGroupingKey implements Comparable<XQGroupingKey> {
 			}
 		}
 	}
-	
-	// TODO: equals
 
 }
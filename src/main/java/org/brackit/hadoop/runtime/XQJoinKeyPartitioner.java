@@ -35,7 +35,8 @@ public class XQJoinKeyPartitioner extends Partitioner<XQGroupingKey, Tuple> {
 	public int getPartition(XQGroupingKey key, Tuple value, int numPartitions)
 	{
 		int result = (key.joinHashCode() & Integer.MAX_VALUE) % numPartitions;
-		return result;
+		// tuples of hot keys are spread over consecutive partitions
+		return (result + key.getSalt()) % numPartitions;
 	}
 
 }
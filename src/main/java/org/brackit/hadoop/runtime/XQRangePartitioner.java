@@ -0,0 +1,108 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.hadoop.runtime;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.xquery.xdm.Tuple;
+
+/**
+ * Range partitioner for global order by shuffles. Keys are serialized with
+ * the order-preserving key encoding and located between the split points
+ * computed by the {@link org.brackit.hadoop.job.KeySampler}, so that the
+ * concatenation of the reducer outputs is totally ordered.
+ * 
+ */
+public class XQRangePartitioner extends Partitioner<XQGroupingKey, Tuple> implements Configurable {
+
+	private final XQRawKeyComparator comparator = new XQRawKeyComparator();
+	private final DataOutputBuffer buffer = new DataOutputBuffer();
+	private Configuration conf;
+	private Serializer<XQGroupingKey> serializer;
+	private byte[][] splitPoints;
+	
+	public int getPartition(XQGroupingKey key, Tuple value, int numPartitions)
+	{
+		if (splitPoints == null || splitPoints.length == 0) {
+			return 0;
+		}
+		
+		try {
+			buffer.reset();
+			serializer.serialize(key);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] data = buffer.getData();
+		int len = buffer.getLength();
+		
+		// number of split points less than or equal to the key
+		int low = 0;
+		int high = splitPoints.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			byte[] point = splitPoints[mid];
+			if (comparator.compare(point, 0, point.length, data, 0, len) <= 0) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return Math.min(low, numPartitions - 1);
+	}
+
+	@Override
+	public void setConf(Configuration conf)
+	{
+		this.conf = conf;
+		splitPoints = new XQueryJobConf(conf).getRangeSplitPoints();
+		try {
+			serializer = new SerializationFactory(conf).getSerializer(XQGroupingKey.class);
+			serializer.open(buffer);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public Configuration getConf()
+	{
+		return conf;
+	}
+
+}
@@ -76,78 +76,108 @@ public class XQTask {
 		{
 			try {
 				HadoopQueryContext hctx = new HadoopQueryContext(context);
-				XQueryJobConf conf = new XQueryJobConf(context.getConfiguration());
 				InputSplit inputSplit = context.getInputSplit();
+				
+				// plans of range splits are adjusted to the range
+				boolean cache = context.getConfiguration().getBoolean(XQueryJobConf.PROP_PLAN_CACHE, true)
+						&& !(inputSplit instanceof BrackitInputSplit 
+								&& ((BrackitInputSplit) inputSplit).getInputSplit() instanceof RangeInputSplit);
+				String job = context.getJobID().toString();
+				String key = PlanCache.mapKey(inputSplit instanceof BrackitInputSplit ? 
+						((BrackitInputSplit) inputSplit).getAstBranch() : -1);
+				
+				PlanCache.Plan plan = cache ? PlanCache.acquire(job, key) : null;
+				if (plan == null) {
+					plan = translate(context);
+				}
+				
+				if (plan.expr == null) {
+					runIdMapper(context, plan.node);
+				}
+				else {
+					plan.expr.evaluate(hctx, plan.tuple);
+				}
+				
+				if (cache) {
+					PlanCache.release(job, key, plan);
+				}
+			}
+			catch (QueryException e) {
+				throw new IOException(e);
+			}
+		}
+		
+		private PlanCache.Plan translate(Mapper<K1,V1,K2,V2>.Context context) throws IOException, QueryException
+		{
+			XQueryJobConf conf = new XQueryJobConf(context.getConfiguration());
+			InputSplit inputSplit = context.getInputSplit();
+			
+			AST ast = conf.getAst();
+			AST node = ast.getLastChild();
 
-				AST ast = conf.getAst();
-				AST node = ast.getLastChild();
+			if (inputSplit != null && inputSplit instanceof BrackitInputSplit) {
+				BrackitInputSplit bis = (BrackitInputSplit) inputSplit;
+				
+				/*
+				 *  Find begin of map task: either root of map-only query
+				 *  or root of one of the shuffle's branches (which branch?
+				 *  the one given by the BrackitInputSplit) 
+				 *  A map-side merge join reads its inputs itself
+				 */
+				while (node.getType() != XQ.Start && node.getType() != XQExt.Shuffle
+						&& node.getType() != XQExt.MergeJoin) {
+					node = node.getLastChild();
+				}
+				if (node.getType() == XQExt.Shuffle) {
+					int branch = bis.getAstBranch();
+					node = node.getChild(branch);
+				}
+				else {
+					node = ast;
+				}
+				
+				if (bis.getInputSplit() instanceof RangeInputSplit) {
+					RangeInputSplit ris = (RangeInputSplit) bis.getInputSplit();
+					long begin = ris.getBegin();
+					long end = ris.getEnd();
 
-				if (inputSplit != null && inputSplit instanceof BrackitInputSplit) {
-					BrackitInputSplit bis = (BrackitInputSplit) inputSplit;
-					
-					/*
-					 *  Find begin of map task: either root of map-only query
-					 *  or root of one of the shuffle's branches (which branch?
-					 *  the one given by the BrackitInputSplit) 
-					 */
-					while (node.getType() != XQ.Start && node.getType() != XQExt.Shuffle) {
-						node = node.getLastChild();
+					AST forBind = node;
+					while (forBind.getType() != XQ.ForBind) {
+						forBind = forBind.getLastChild();
 					}
-					if (node.getType() == XQExt.Shuffle) {
-						int branch = bis.getAstBranch();
-						node = node.getChild(branch);
+					AST rangeExpr = forBind.getChild(1);
+					if (rangeExpr.getType() == XQ.RangeExpr) {
+						// TODO: review typing of literals! How about range expr?
+						rangeExpr.getChild(0).setValue(new Int32((int) begin));
+						rangeExpr.getChild(1).setValue(new Int32((int) end));
+						LOG.info(String.format("Range expression of task adjusted to %d-%d", begin, end));
 					}
 					else {
-						node = ast;
-					}
-					
-					if (bis.getInputSplit() instanceof RangeInputSplit) {
-						RangeInputSplit ris = (RangeInputSplit) bis.getInputSplit();
-						long begin = ris.getBegin();
-						long end = ris.getEnd();
-
-						AST forBind = node;
-						while (forBind.getType() != XQ.ForBind) {
-							forBind = forBind.getLastChild();
-						}
-						AST rangeExpr = forBind.getChild(1);
-						if (rangeExpr.getType() == XQ.RangeExpr) {
-							// TODO: review typing of literals! How about range expr?
-							rangeExpr.getChild(0).setValue(new Int32((int) begin));
-							rangeExpr.getChild(1).setValue(new Int32((int) end));
-							LOG.info(String.format("Range expression of task adjusted to %d-%d", begin, end));
-						}
-						else {
-							throw new IOException("Could not find range expression in query using RangeInputFormat");
-						}
+						throw new IOException("Could not find range expression in query using RangeInputFormat");
 					}
 				}
+			}
 
-				if (node.getChildCount() == 0) {
-					runIdMapper(context, node);
-					return;
-				}
-
-				Targets targets = conf.getTargets();
-				MRTranslator translator = new MRTranslator(conf, null);
-				if (targets != null) {
-					for (Target t : targets) {
-						t.translate(translator);
-					}
-				}
+			if (node.getChildCount() == 0) {
+				return new PlanCache.Plan(null, node, null);
+			}
 
-				Tuple tuple = conf.getTuple();
-				if (tuple == null) {
-					tuple = new TupleImpl();
+			Targets targets = conf.getTargets();
+			MRTranslator translator = new MRTranslator(conf, null);
+			if (targets != null) {
+				for (Target t : targets) {
+					t.translate(translator);
 				}
-
-				Expr expr = translator.expression(conf.getStaticContext(), node, false);
-				expr.evaluate(hctx, tuple);
 			}
-			catch (QueryException e) {
-				throw new IOException(e);
+
+			Tuple tuple = conf.getTuple();
+			if (tuple == null) {
+				tuple = new TupleImpl();
 			}
-		}		
+
+			Expr expr = translator.expression(conf.getStaticContext(), node, false);
+			return new PlanCache.Plan(expr, node, tuple);
+		}
 
 		@SuppressWarnings({ "unchecked", "rawtypes" })
 		private void runIdMapper(Mapper.Context context, AST node) throws IOException, InterruptedException
@@ -157,6 +187,7 @@ public class XQTask {
 			}
 			else {
 				XQGroupingKey key = null;
+				XQGroupingKey tagged = null;
 				Tuple value = null;
 				Integer tag = (Integer) node.getProperty("tag");
 				if (tag != null) {
@@ -164,12 +195,15 @@ public class XQTask {
 					try {
 						while (context.nextKeyValue()) {
 							key = (XQGroupingKey) context.getCurrentKey();
-							Atomic[] keys = Arrays.copyOf(key.keys, key.keys.length + 1);
-							keys[keys.length - 1] = tagAtomic; 
-							key = new XQGroupingKey(keys, key.indexes);
+							// the tagged key is reused, as it is serialized on write
+							if (tagged == null || tagged.keys.length != key.keys.length + 1) {
+								tagged = new XQGroupingKey(new Atomic[key.keys.length + 1], key.indexes);
+								tagged.keys[key.keys.length] = tagAtomic;
+							}
+							System.arraycopy(key.keys, 0, tagged.keys, 0, key.keys.length);
 							value = (Tuple) context.getCurrentValue();
-							key.rebuildTuple(value);
-							context.write(key, value);
+							tagged.rebuildTuple(value);
+							context.write(tagged, value);
 						}
 					}
 					catch (QueryException e) {
@@ -335,41 +369,134 @@ public class XQTask {
 
 	}
 
-	public static class XQReducer<K1,V1,K2,V2> extends Reducer<K1,V1,K2,V2> {
-
+	/**
+	 * Common part of the combiner and the reducer, which both evaluate a plan
+	 * built around the shuffle of the job AST. Plans are cached under the given
+	 * key (see PlanCache).
+	 */
+	static abstract class PlanReducer<K1,V1,K2,V2> extends Reducer<K1,V1,K2,V2> {
+		
+		private final String planKey;
+		
+		PlanReducer(String planKey)
+		{
+			this.planKey = planKey;
+		}
+		
 		@Override
 		public void run(Reducer<K1,V1,K2,V2>.Context context) throws IOException, InterruptedException
 		{
 			try {
 				HadoopQueryContext hctx = new HadoopQueryContext(context);
-				XQueryJobConf conf = new XQueryJobConf(context.getConfiguration());
-				Targets targets = conf.getTargets();
-				MRTranslator translator = new MRTranslator(conf, null);
-				if (targets != null) {
-					for (Target t : targets) {
-						t.translate(translator);
-					}
-				}
-
-				AST ast = conf.getAst();			
-				AST node = ast.getLastChild();
-				while (node.getType() != XQExt.Shuffle) {
-					node = node.getLastChild();
+				boolean cache = context.getConfiguration().getBoolean(XQueryJobConf.PROP_PLAN_CACHE, true);
+				String job = context.getJobID().toString();
+				
+				PlanCache.Plan plan = cache ? PlanCache.acquire(job, planKey) : null;
+				if (plan == null) {
+					plan = translate(context);
 				}
-				node.getParent().deleteChild(node.getChildIndex());
-
-				Tuple tuple = conf.getTuple();
-				if (tuple == null) {
-					tuple = new TupleImpl();
+				plan.expr.evaluate(hctx, plan.tuple);
+				
+				if (cache) {
+					PlanCache.release(job, planKey, plan);
 				}
-
-				Expr expr = translator.expression(conf.getStaticContext(), ast, false);
-				expr.evaluate(hctx, tuple);
 			}
 			catch (QueryException e) {
 				throw new IOException(e);
 			}
-		}		
+		}
+		
+		private PlanCache.Plan translate(Reducer<K1,V1,K2,V2>.Context context) throws QueryException
+		{
+			XQueryJobConf conf = new XQueryJobConf(context.getConfiguration());
+			Targets targets = conf.getTargets();
+			MRTranslator translator = new MRTranslator(conf, null);
+			if (targets != null) {
+				for (Target t : targets) {
+					t.translate(translator);
+				}
+			}
+			
+			AST node = plan(conf.getAst());
+			
+			Tuple tuple = conf.getTuple();
+			if (tuple == null) {
+				tuple = new TupleImpl();
+			}
+			
+			Expr expr = translator.expression(conf.getStaticContext(), node, false);
+			return new PlanCache.Plan(expr, node, tuple);
+		}
+		
+		protected static AST shuffle(AST ast)
+		{
+			AST node = ast.getLastChild();
+			while (node.getType() != XQExt.Shuffle) {
+				node = node.getLastChild();
+			}
+			return node;
+		}
+		
+		/**
+		 * Builds the AST of the plan from the AST of the job
+		 */
+		protected abstract AST plan(AST ast);
+		
+	}
+	
+	/**
+	 * Merges partial aggregates of a group-by shuffle on map-side spills and
+	 * reduce-side merges. It evaluates the postGroup of the reducer between a
+	 * PhaseIn and a copy of the map-side PhaseOut, so that its output has the
+	 * same format as the map output.
+	 */
+	public static class XQCombiner<K1,V1,K2,V2> extends PlanReducer<K1,V1,K2,V2> {
+		
+		public XQCombiner()
+		{
+			super(PlanCache.COMBINE);
+		}
+		
+		@Override
+		protected AST plan(AST ast)
+		{
+			AST shuffle = shuffle(ast);
+			AST phaseOut = shuffle.getChild(0);
+			AST phaseIn = shuffle.getParent();
+			AST postGroup = phaseIn.getParent();
+			
+			AST combiner = copyWithoutInput(phaseOut);
+			AST group = copyWithoutInput(postGroup);
+			group.addChild(phaseIn.copy());
+			combiner.addChild(group);
+			return combiner;
+		}
+		
+		private AST copyWithoutInput(AST node)
+		{
+			AST copy = node.copy();
+			for (int i = 0; i < node.getChildCount() - 1; i++) {
+				copy.addChild(node.getChild(i).copyTree());
+			}
+			return copy;
+		}
+
+	}
+
+	public static class XQReducer<K1,V1,K2,V2> extends PlanReducer<K1,V1,K2,V2> {
+		
+		public XQReducer()
+		{
+			super(PlanCache.REDUCE);
+		}
+		
+		@Override
+		protected AST plan(AST ast)
+		{
+			AST shuffle = shuffle(ast);
+			shuffle.getParent().deleteChild(shuffle.getChildIndex());
+			return ast;
+		}
 
 	}
 
@@ -1,6 +1,12 @@
 package org.brackit.xquery.compiler;
 
+import java.io.IOException;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.brackit.hadoop.collection.DistrCacheCollection;
 import org.brackit.hadoop.collection.HadoopCSVCollection;
 import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.QueryException;
@@ -30,11 +36,24 @@ public class HadoopCollectionFactory extends CollectionFactory {
 			return false;
 		}
 		
-		/*
-		 * Here comes the code to get size of HDFS file
-		 * You need to first check if 'location' is indeed an hdfs file (hdfs://...)
-		 */
-		long size = Long.MAX_VALUE;
+		long size;
+		try {
+			// only plain files are replicated (see DistrCacheCollection)
+			Path path = new Path(location);
+			FileSystem fs = path.getFileSystem(conf);
+			FileStatus status = fs.getFileStatus(path);
+			if (status.isDir()) {
+				return false;
+			}
+			size = status.getLen();
+		}
+		catch (IOException e) {
+			return false;
+		}
+		catch (IllegalArgumentException e) {
+			// not a valid path
+			return false;
+		}
 		
 		return size < REPLICATE_THRESHOLD;
 	}
@@ -43,15 +62,9 @@ public class HadoopCollectionFactory extends CollectionFactory {
 	public Collection<?> create(String name, String format, String location,
 			String options, ItemType type) throws QueryException
 	{
-		boolean small = isSmall(location);
-		
 		if (format.equalsIgnoreCase("csv")) {
-			if (small) {
-				/*
-				 * Implement a collection that reads CSV data from distr. cache and uncomment:
-				 * Replication should happen in the constructor of DistrCacheCollection
-				 */
-				// return new DistrCacheCollection(name, location, options type);
+			if (isSmall(location)) {
+				return new DistrCacheCollection(name, location, options, type);
 			}
 			return new HadoopCSVCollection(name, location, options, type);
 		}
@@ -36,6 +36,9 @@ public class XQExt {
 	public static final int PhaseIn = OFFSET + 2;
 	public static final int PhaseOut = OFFSET + 3;
 	public static final int PostJoin = OFFSET + 4;
+	public static final int PreAggregate = OFFSET + 5;
+	public static final int MapJoin = OFFSET + 6;
+	public static final int MergeJoin = OFFSET + 7;
 
 	public static final String NAMES[] = new String[] {
 		"Shuffle",
@@ -43,6 +46,9 @@ public class XQExt {
 		"PhaseIn",
 		"PhaseOut",
 		"PostJoin",
+		"PreAggregate",
+		"MapJoin",
+		"MergeJoin",
 	};
 
 	public static final AST createNode(int key)
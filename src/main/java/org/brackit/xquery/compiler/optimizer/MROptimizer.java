@@ -29,12 +29,18 @@ package org.brackit.xquery.compiler.optimizer;
 
 import java.util.Map;
 
+import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.QueryException;
 import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.optimizer.walker.DeadColumnElimination;
+import org.brackit.xquery.compiler.optimizer.walker.MultiWayJoinRewrite;
+import org.brackit.xquery.compiler.optimizer.walker.PredicatePushdown;
+import org.brackit.xquery.compiler.optimizer.walker.RecordFieldPushdown;
 import org.brackit.xquery.compiler.optimizer.walker.ReplaceAvgFunction;
 import org.brackit.xquery.compiler.optimizer.walker.ShuffleRewrite;
 import org.brackit.xquery.compiler.optimizer.walker.SwitchJoinType;
 import org.brackit.xquery.module.StaticContext;
+import org.brackit.xquery.util.Cfg;
 import org.brackit.xquery.xdm.atomic.QNm;
 import org.brackit.xquery.xdm.atomic.Str;
 
@@ -56,8 +62,20 @@ public class MROptimizer extends TopDownOptimizer {
 
 		public AST rewrite(StaticContext sctx, AST ast) throws QueryException
 		{
-			ast = new SwitchJoinType().walk(ast);
+			ast = new SwitchJoinType(sctx).walk(ast);
 			ast = new ShuffleRewrite().walk(ast);
+			if (Cfg.asBool(XQueryJobConf.PROP_MULTIWAY_JOIN, false)) {
+				ast = new MultiWayJoinRewrite().walk(ast);
+			}
+			if (Cfg.asBool(XQueryJobConf.PROP_PREDICATE_PUSHDOWN, true)) {
+				ast = new PredicatePushdown().walk(ast);
+			}
+			if (Cfg.asBool(XQueryJobConf.PROP_FIELD_PUSHDOWN, true)) {
+				ast = new RecordFieldPushdown().walk(ast);
+			}
+			if (Cfg.asBool(XQueryJobConf.PROP_DEAD_COLUMNS, true)) {
+				ast = new DeadColumnElimination().walk(ast);
+			}
 			return ast;
 		}
 		
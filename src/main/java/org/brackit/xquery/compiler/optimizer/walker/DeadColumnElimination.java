@@ -0,0 +1,131 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.compiler.optimizer.walker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQ;
+import org.brackit.xquery.compiler.XQExt;
+
+/**
+ * Marks the columns of each PhaseOut which are not referenced after the
+ * shuffle, i.e., by any variable reference outside of the PhaseOut's subtree.
+ * Such columns are not serialized (see TupleSerialization) and arrive as
+ * empty columns at the reducers.
+ * 
+ * Since variable references address tuple columns by absolute position, the
+ * tuples are not actually narrowed. The dead columns are recorded as
+ * "deadIndexes" on the PhaseOut and, like the types and key indexes, on the
+ * Shuffle and PhaseIn ("deadIndexesMap" for joins), where the serialization
+ * looks them up.
+ * 
+ */
+public class DeadColumnElimination extends Walker {
+
+	@Override
+	protected AST visit(AST node)
+	{
+		if (node.getType() == XQExt.Shuffle) {
+			eliminate(node);
+		}
+		return node;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void eliminate(AST shuffle)
+	{
+		AST root = shuffle;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		
+		ArrayList<ArrayList<Integer>> deadIndexesMap = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < shuffle.getChildCount(); i++) {
+			AST phaseOut = shuffle.getChild(i);
+			List<?> types = (List<?>) phaseOut.getProperty("types");
+			List<Integer> keyIndexes = (List<Integer>) phaseOut.getProperty("keyIndexes");
+			if (phaseOut.getType() != XQExt.PhaseOut || types == null || keyIndexes == null) {
+				return;
+			}
+			
+			BitSet live = new BitSet(types.size());
+			for (Integer key : keyIndexes) {
+				live.set(key);
+			}
+			if (!collectReferences(root, phaseOut, live)) {
+				return;
+			}
+			
+			ArrayList<Integer> deadIndexes = new ArrayList<Integer>();
+			for (int pos = live.nextClearBit(0); pos < types.size(); pos = live.nextClearBit(pos + 1)) {
+				deadIndexes.add(pos);
+			}
+			phaseOut.setProperty("deadIndexes", deadIndexes);
+			deadIndexesMap.add(deadIndexes);
+		}
+		
+		AST phaseIn = shuffle.getParent();
+		if (shuffle.checkProperty("isJoin")) {
+			shuffle.setProperty("deadIndexesMap", deadIndexesMap);
+			phaseIn.setProperty("deadIndexesMap", deadIndexesMap);
+		}
+		else if (deadIndexesMap.size() == 1) {
+			shuffle.setProperty("deadIndexes", deadIndexesMap.get(0));
+			phaseIn.setProperty("deadIndexes", deadIndexesMap.get(0));
+		}
+	}
+	
+	/*
+	 * References inside the PhaseOut are evaluated before the shuffle and
+	 * therefore do not keep a column alive. Returns false if a reference has
+	 * not been resolved to a column, in which case nothing is known to be dead.
+	 */
+	private boolean collectReferences(AST node, AST phaseOut, BitSet live)
+	{
+		if (node == phaseOut) {
+			return true;
+		}
+		if (node.getType() == XQ.VariableRef) {
+			Integer pos = (Integer) node.getProperty("pos");
+			if (pos == null) {
+				return false;
+			}
+			live.set(pos);
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (!collectReferences(node.getChild(i), phaseOut, live)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
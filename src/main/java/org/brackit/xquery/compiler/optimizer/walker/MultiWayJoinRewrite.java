@@ -0,0 +1,127 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.compiler.optimizer.walker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQExt;
+
+/**
+ * Merges the shuffles of a left-deep chain of joins which share the join key
+ * into a single shuffle, so that the chain is evaluated by one job instead of
+ * one job per join. The inputs of the merged shuffle are tagged 0..n-1 in the
+ * order of the join's tuple layout (i.e., tag i tuples extend the tag i-1
+ * tuples by the columns of input i) and the post join becomes n-ary.
+ * 
+ * This applies when the left input of a post join is directly another post
+ * join and the outer join key is one of the inner join keys. Chains on
+ * different keys (e.g., customer-orders-lineitem) still need one shuffle per
+ * key.
+ * 
+ * The n-ary post join keeps the tables of all but the last input in memory
+ * and, unlike the binary post join, cannot spill them. The rewrite is
+ * therefore off unless org.brackit.hadoop.multiwayJoin is set.
+ * 
+ */
+public class MultiWayJoinRewrite extends Walker {
+
+	@Override
+	protected AST visit(AST node)
+	{
+		if (node.getType() == XQExt.PostJoin) {
+			while (merge(node)) {
+				// inner join may itself be preceded by a foldable join
+			}
+		}
+		return node;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private boolean merge(AST join)
+	{
+		AST phaseIn = join.getChild(0);
+		AST shuffle = phaseIn.getChild(0);
+		if (shuffle.getType() != XQExt.Shuffle || shuffle.getChildCount() < 2) {
+			return false;
+		}
+		AST left = shuffle.getChild(0);
+		AST innerJoin = left.getLastChild();
+		if (innerJoin == null || innerJoin.getType() != XQExt.PostJoin) {
+			return false;
+		}
+		AST innerPhaseIn = innerJoin.getChild(0);
+		AST innerShuffle = innerPhaseIn.getChild(0);
+		if (innerShuffle.getType() != XQExt.Shuffle) {
+			return false;
+		}
+		
+		List<List<Integer>> keyIndexesMap = (List<List<Integer>>) shuffle.getProperty("keyIndexesMap");
+		List<List<Integer>> innerKeyIndexesMap = (List<List<Integer>>) innerShuffle.getProperty("keyIndexesMap");
+		if (keyIndexesMap.get(0).size() != 1) {
+			return false;
+		}
+		
+		// all inner inputs agree on the key, so the outer one may refer to any of them
+		boolean sharedKey = false;
+		for (List<Integer> innerKey : innerKeyIndexesMap) {
+			if (innerKey.size() == 1 && innerKey.get(0).equals(keyIndexesMap.get(0).get(0))) {
+				sharedKey = true;
+			}
+		}
+		if (!sharedKey) {
+			return false;
+		}
+		
+		// inner inputs keep their tags, the outer right inputs are appended
+		List<Object> typesMap = new ArrayList<Object>((List<Object>) innerShuffle.getProperty("typesMap"));
+		List<Object> outerTypesMap = (List<Object>) shuffle.getProperty("typesMap");
+		List<List<Integer>> mergedKeys = new ArrayList<List<Integer>>(innerKeyIndexesMap);
+		List<AST> phaseOuts = new ArrayList<AST>();
+		for (int i = 1; i < shuffle.getChildCount(); i++) {
+			phaseOuts.add(shuffle.getChild(i));
+			typesMap.add(outerTypesMap.get(i));
+			mergedKeys.add(keyIndexesMap.get(i));
+		}
+		int tag = innerShuffle.getChildCount();
+		for (AST phaseOut : phaseOuts) {
+			phaseOut.setProperty("tag", tag++);
+			innerShuffle.addChild(phaseOut);
+		}
+		
+		innerShuffle.setProperty("typesMap", typesMap);
+		innerShuffle.setProperty("keyIndexesMap", mergedKeys);
+		innerPhaseIn.setProperty("typesMap", typesMap);
+		innerPhaseIn.setProperty("keyIndexesMap", mergedKeys);
+		join.setProperty("keyIndexesMap", mergedKeys);
+		join.replaceChild(0, innerPhaseIn);
+		return true;
+	}
+	
+}
@@ -0,0 +1,319 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.compiler.optimizer.walker;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQ;
+import org.brackit.xquery.compiler.XQExt;
+import org.brackit.xquery.expr.Cmp;
+import org.brackit.xquery.util.csv.ComparisonPred;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.QNm;
+
+/**
+ * Pushes conjunctive comparisons of a record field with a literal (e.g.,
+ * $l=>orderkey > 100) down to the scan of the collection which binds the
+ * record, as "predicates" property of the collection call. The scan then
+ * rejects rows before records are built (see HadoopCSVCollection).
+ * 
+ * Predicates are also derived transitively over equi-joins on record fields:
+ * a predicate on the join key of one input is added for the join key of the
+ * other inputs. As the scan supports a single predicate per field, further
+ * predicates on the same field are not pushed down. The Selection itself is
+ * kept as a residual filter, which re-checks the (fewer) remaining tuples
+ * with the exact semantics of the query.
+ * 
+ */
+public class PredicatePushdown extends Walker {
+
+	private final IdentityHashMap<AST, List<Pred>> pushed = new IdentityHashMap<AST, List<Pred>>();
+	
+	private static class Pred {
+		final QNm field;
+		final Cmp cmp;
+		final Atomic value;
+		
+		Pred(QNm field, Cmp cmp, Atomic value)
+		{
+			this.field = field;
+			this.cmp = cmp;
+			this.value = value;
+		}
+	}
+	
+	@Override
+	protected AST visit(AST node)
+	{
+		if (node.getType() == XQ.Selection && node.getChildCount() == 2) {
+			ArrayList<AST> conjuncts = new ArrayList<AST>();
+			collectConjuncts(node.getChild(0), conjuncts);
+			for (AST conjunct : conjuncts) {
+				pushdown(conjunct, node.getLastChild());
+			}
+		}
+		return node;
+	}
+	
+	private void collectConjuncts(AST predicate, List<AST> conjuncts)
+	{
+		if (predicate.getType() == XQ.AndExpr) {
+			for (int i = 0; i < predicate.getChildCount(); i++) {
+				collectConjuncts(predicate.getChild(i), conjuncts);
+			}
+		}
+		else {
+			conjuncts.add(predicate);
+		}
+	}
+	
+	private void pushdown(AST comparison, AST input)
+	{
+		if (comparison.getType() != XQ.ComparisonExpr || comparison.getChildCount() != 3) {
+			return;
+		}
+		Cmp cmp = cmp(comparison.getChild(0));
+		AST deref = comparison.getChild(1);
+		AST literal = comparison.getChild(2);
+		if (isLiteral(deref) && fieldName(literal) != null) {
+			AST tmp = deref;
+			deref = literal;
+			literal = tmp;
+			cmp = swap(cmp);
+		}
+		QNm field = fieldName(deref);
+		if (cmp == null || field == null || !isLiteral(literal)) {
+			return;
+		}
+		AST scan = findScan(input, (QNm) deref.getChild(0).getValue());
+		if (scan != null) {
+			add(scan, new Pred(field, cmp, literal.getValue()));
+		}
+	}
+	
+	private void add(AST scan, Pred pred)
+	{
+		List<Pred> preds = pushed.get(scan);
+		if (preds == null) {
+			preds = new ArrayList<Pred>();
+			pushed.put(scan, preds);
+		}
+		for (Pred p : preds) {
+			if (p.field.atomicCmp(pred.field) == 0) {
+				return;
+			}
+		}
+		preds.add(pred);
+		
+		ArrayList<ComparisonPred> predicates = new ArrayList<ComparisonPred>(preds.size());
+		for (Pred p : preds) {
+			predicates.add(new ComparisonPred(p.field, p.cmp, p.value));
+		}
+		scan.setProperty("predicates", predicates);
+		
+		AST root = scan;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		propagate(root, scan, pred);
+	}
+	
+	/*
+	 * Adds the predicate to all inputs which are equi-joined on the field
+	 */
+	private void propagate(AST node, AST scan, Pred pred)
+	{
+		List<AST[]> keys = null;
+		if (node.getType() == XQExt.Shuffle && node.checkProperty("isJoin")) {
+			keys = new ArrayList<AST[]>();
+			for (int i = 0; i < node.getChildCount(); i++) {
+				AST phaseOut = node.getChild(i);
+				if (phaseOut.getChildCount() > 1) {
+					keys.add(joinKey(phaseOut.getChild(0).getChild(0), phaseOut.getLastChild()));
+				}
+			}
+		}
+		else if (node.getType() == XQExt.MapJoin) {
+			keys = new ArrayList<AST[]>();
+			keys.add(joinKey(node.getChild(1), node.getChild(0)));
+			keys.add(joinKey(node.getChild(2), node.getLastChild()));
+		}
+		
+		if (keys != null) {
+			for (AST[] key : keys) {
+				if (key != null && key[0] == scan && fieldName(key[1]).atomicCmp(pred.field) == 0) {
+					for (AST[] other : keys) {
+						if (other != null && other != key) {
+							add(other[0], new Pred(fieldName(other[1]), pred.cmp, pred.value));
+						}
+					}
+				}
+			}
+		}
+		
+		for (int i = 0; i < node.getChildCount(); i++) {
+			propagate(node.getChild(i), scan, pred);
+		}
+	}
+	
+	/*
+	 * Resolves a join key variable which is bound to a record field, i.e., 
+	 * let $k := $r=>field, to the scan of $r and the deref expression
+	 */
+	private AST[] joinKey(AST varRef, AST input)
+	{
+		if (varRef.getType() != XQ.VariableRef) {
+			return null;
+		}
+		AST let = findBinding(input, (QNm) varRef.getValue());
+		if (let == null || let.getType() != XQ.LetBind || fieldName(let.getChild(1)) == null) {
+			return null;
+		}
+		AST deref = let.getChild(1);
+		AST scan = findScan(let.getLastChild(), (QNm) deref.getChild(0).getValue());
+		return scan != null ? new AST[] { scan, deref } : null;
+	}
+	
+	private AST findScan(AST input, QNm var)
+	{
+		AST bind = findBinding(input, var);
+		if (bind == null || bind.getType() != XQ.ForBind || bind.getChild(1).getType() != XQ.FunctionCall) {
+			return null;
+		}
+		return bind.getChild(1);
+	}
+	
+	/*
+	 * Searches the operator which binds the variable in the input pipeline.
+	 * Predicates cannot be pushed through a group-by, which turns the
+	 * variable into a sequence, nor through any other operator that is not
+	 * a plain tuple filter or extension.
+	 */
+	private AST findBinding(AST node, QNm var)
+	{
+		while (node != null) {
+			int type = node.getType();
+			if (type == XQ.ForBind || type == XQ.LetBind) {
+				if (var.atomicCmp((QNm) node.getChild(0).getChild(0).getValue()) == 0) {
+					return node;
+				}
+			}
+			else if (type == XQExt.Shuffle) {
+				for (int i = 0; i < node.getChildCount(); i++) {
+					AST bind = findBinding(node.getChild(i), var);
+					if (bind != null) {
+						return bind;
+					}
+				}
+				return null;
+			}
+			else if (type == XQExt.MapJoin) {
+				AST bind = findBinding(node.getChild(0), var);
+				if (bind != null) {
+					return bind;
+				}
+			}
+			else if (type != XQ.Selection && type != XQ.OrderBy && type != XQExt.PhaseIn
+					&& type != XQExt.PhaseOut && type != XQExt.PostJoin) {
+				return null;
+			}
+			node = node.getLastChild();
+		}
+		return null;
+	}
+	
+	private static QNm fieldName(AST deref)
+	{
+		if (deref.getType() != XQ.DerefExpr || deref.getChildCount() != 2
+				|| deref.getChild(0).getType() != XQ.VariableRef) {
+			return null;
+		}
+		AST field = deref.getChild(1);
+		if (field.getType() != XQ.Str && field.getType() != XQ.QNm) {
+			return null;
+		}
+		return new QNm(field.getStringValue());
+	}
+	
+	private static boolean isLiteral(AST node)
+	{
+		int type = node.getType();
+		return (type == XQ.Str || type == XQ.Int || type == XQ.Dec || type == XQ.Dbl)
+				&& node.getValue() != null;
+	}
+	
+	private static Cmp cmp(AST op)
+	{
+		switch (op.getType()) {
+		case XQ.GeneralCompEQ:
+		case XQ.ValueCompEQ:
+			return Cmp.eq;
+		case XQ.GeneralCompNE:
+		case XQ.ValueCompNE:
+			return Cmp.ne;
+		case XQ.GeneralCompLT:
+		case XQ.ValueCompLT:
+			return Cmp.lt;
+		case XQ.GeneralCompLE:
+		case XQ.ValueCompLE:
+			return Cmp.le;
+		case XQ.GeneralCompGT:
+		case XQ.ValueCompGT:
+			return Cmp.gt;
+		case XQ.GeneralCompGE:
+		case XQ.ValueCompGE:
+			return Cmp.ge;
+		default:
+			return null;
+		}
+	}
+	
+	// literal cmp field -> field swap(cmp) literal
+	private static Cmp swap(Cmp cmp)
+	{
+		if (cmp == null) {
+			return null;
+		}
+		switch (cmp) {
+		case lt:
+			return Cmp.gt;
+		case le:
+			return Cmp.ge;
+		case gt:
+			return Cmp.lt;
+		case ge:
+			return Cmp.le;
+		default:
+			return cmp;
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.compiler.optimizer.walker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brackit.xquery.compiler.AST;
+import org.brackit.xquery.compiler.XQ;
+import org.brackit.xquery.util.csv.ComparisonPred;
+import org.brackit.xquery.xdm.atomic.QNm;
+
+/**
+ * Pushes the record fields accessed on a variable bound to a collection
+ * (e.g., $l=>orderkey) down to the collection as "fields" property, so that
+ * only those fields are parsed by the scan (see HadoopCSVCollection). Since
+ * the records are created narrow, they also cross every following PhaseOut
+ * with these fields only.
+ * 
+ * All references to the variable are considered, including those in later
+ * jobs. If any of them uses the whole record (e.g., it is returned or passed
+ * to a function), nothing is pushed down.
+ * 
+ */
+public class RecordFieldPushdown extends Walker {
+
+	@Override
+	protected AST visit(AST node)
+	{
+		if (node.getType() == XQ.ForBind && node.getChild(1).getType() == XQ.FunctionCall
+				&& node.getChild(1).getProperty("fields") == null) {
+			pushdown(node);
+		}
+		return node;
+	}
+	
+	private void pushdown(AST forBind)
+	{
+		QNm var = (QNm) forBind.getChild(0).getChild(0).getValue();
+		AST root = forBind;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		
+		ArrayList<QNm> fields = new ArrayList<QNm>();
+		if (collectFields(root, var, fields) && !fields.isEmpty()) {
+			// fields filtered by the scan must be parsed as well
+			@SuppressWarnings("unchecked")
+			List<ComparisonPred> preds = (List<ComparisonPred>) forBind.getChild(1).getProperty("predicates");
+			if (preds != null) {
+				for (ComparisonPred pred : preds) {
+					if (!fields.contains(pred.getField())) {
+						fields.add(pred.getField());
+					}
+				}
+			}
+			forBind.getChild(1).setProperty("fields", fields);
+		}
+	}
+	
+	/*
+	 * Returns false if the variable is used other than by dereferencing a
+	 * constant field name
+	 */
+	private boolean collectFields(AST node, QNm var, ArrayList<QNm> fields)
+	{
+		if (node.getType() == XQ.VariableRef && var.atomicCmp((QNm) node.getValue()) == 0) {
+			AST parent = node.getParent();
+			if (parent == null || parent.getType() != XQ.DerefExpr || parent.getChild(0) != node) {
+				return false;
+			}
+			AST field = parent.getChild(1);
+			if (field.getType() != XQ.Str && field.getType() != XQ.QNm) {
+				return false;
+			}
+			QNm name = new QNm(field.getStringValue());
+			if (!fields.contains(name)) {
+				fields.add(name);
+			}
+			return true;
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			if (!collectFields(node.getChild(i), var, fields)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
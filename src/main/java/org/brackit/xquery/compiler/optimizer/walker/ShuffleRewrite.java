@@ -40,6 +40,9 @@ import org.brackit.xquery.xdm.type.SequenceType;
 
 public class ShuffleRewrite extends Walker {
 
+	private static final String CODEPOINT_COLLATION = 
+			"http://www.w3.org/2005/xpath-functions/collation/codepoint";
+	
 	private Stack<Integer> joinPosShifts = new Stack<Integer>();
 	
 	@Override
@@ -73,12 +76,6 @@ public class ShuffleRewrite extends Walker {
 			return node;
 		}
 		
-		if (node.checkProperty("fr")) {
-			// we know it's a fragment-replicate join, so we do not convert it into a shuffle
-			// Is there anything special to be done in this case or can we just return?
-			return node;
-		}
-		
 		AST left = node.getChild(0);
 		AST right = node.getChild(1);
 		AST parent = node.getParent();
@@ -91,6 +88,11 @@ public class ShuffleRewrite extends Walker {
 		
 		node.deleteChild(node.getChildCount() - 1);
 		
+		if (node.checkProperty("fr")) {
+			// fragment-replicate join: no shuffle, build input is read from distributed cache
+			return mapJoin(node, left, right, parent);
+		}
+		
 		AST phaseOutLeft = createNode(left, XQExt.PhaseOut);
 		AST phaseOutRight = createNode(right, XQExt.PhaseOut);
 		
@@ -133,6 +135,14 @@ public class ShuffleRewrite extends Walker {
 		join.setProperty("keyIndexesMap", shuffle.getProperty("keyIndexesMap"));
 		phaseIn.setProperty("isJoin", true);
 		shuffle.setProperty("isJoin", true);
+		if (Cfg.asBool(XQueryJobConf.PROP_BLOOM_JOIN, false)) {
+			// probe tuples are filtered against the build keys before the shuffle
+			shuffle.setProperty("bloom", true);
+		}
+		if (Cfg.asBool(XQueryJobConf.PROP_SKEW_JOIN, false)) {
+			// hot keys are detected by sampling before the job is submitted
+			shuffle.setProperty("skew", true);
+		}
 		
 		shuffle.addChild(phaseOutLeft);
 		shuffle.addChild(phaseOutRight);
@@ -144,6 +154,38 @@ public class ShuffleRewrite extends Walker {
 		return parent;
 	}
 
+	private AST mapJoin(AST node, AST left, AST right, AST parent)
+	{
+		boolean buildLeft = ((Integer) node.getProperty("frBuild")) == 0;
+		AST build = buildLeft ? left : right;
+		AST probe = buildLeft ? right : left;
+		
+		AST mapJoin = createNode(node, XQExt.MapJoin);
+		mapJoin.setProperty("buildLeft", buildLeft);
+		
+		// right tuples are placed after the left ones, as in the post join
+		@SuppressWarnings("unchecked")
+		ArrayList<SequenceType> types = (ArrayList<SequenceType>) left.getProperty("types");
+		joinPosShifts.push(types.size());
+		new PosShiftWalker().walk(right.getLastChild());
+		joinPosShifts.pop();
+		
+		// mark the collection scanned by the build input for replication
+		AST bind = build.getLastChild();
+		while (bind.getType() != XQ.ForBind) {
+			bind = bind.getLastChild();
+		}
+		bind.getChild(1).setProperty("replicated", true);
+		
+		mapJoin.addChild(build.getLastChild());
+		mapJoin.addChild(build.getChild(0).copy());
+		mapJoin.addChild(probe.getChild(0).copy());
+		mapJoin.addChild(probe.getLastChild());
+		
+		parent.replaceChild(parent.getChildCount() - 1, mapJoin);
+		return parent;
+	}
+	
 	private AST groupBy(AST node)
 	{
 		if (node.checkProperty("local"))
@@ -168,6 +210,7 @@ public class ShuffleRewrite extends Walker {
 		preGroup.setProperty("local", true);
 		
 		int keyLen = 0;
+		boolean hasAggregates = false;
 		for (int i = 0; i < postGroup.getChildCount(); i++) {
 			AST spec = postGroup.getChild(i);
 			if (spec.getType() == XQ.GroupBySpec) {
@@ -180,6 +223,7 @@ public class ShuffleRewrite extends Walker {
 				for (int j = 1; j < spec.getChildCount(); j++) {
 					AST aggBind = spec.getChild(j);
 					if (aggBind.getType() == XQ.AggregateBinding) {
+						hasAggregates = true;
 						if (j == 1) {
 							postGroup.deleteChild(i);
 						}
@@ -252,9 +296,29 @@ public class ShuffleRewrite extends Walker {
 				shuffle.setProperty("skipSort", true);
 			}
 			preGroup.addChild(next);
+			
+			// groups of a single key reach the reducer in key order, so emitting
+			// them in that order leaves the output sorted for a map-side merge join
+			if (!hashGroupBy && keyLen == 1 && Cfg.asBool(XQueryJobConf.PROP_MAP_MERGE_JOIN, true)) {
+				postGroup.setProperty("sequential", true);
+			}
+			
+			// partial aggregates can be merged again on map-side spills
+			if (!hashGroupBy && hasAggregates && Cfg.asBool(XQueryJobConf.PROP_COMBINER, true)) {
+				shuffle.setProperty("combine", true);
+			}
 		}
 		
-		phaseOut.addChild(preGroup);
+		if (!addOrderBy && Cfg.asBool(XQueryJobConf.PROP_PRE_AGGREGATE, true)) {
+			// fold partial aggregates in memory-bounded chunks of the map input
+			AST preAggregate = createNode(node, XQExt.PreAggregate);
+			preAggregate.setProperty("keyIndexes", keyIndexes);
+			preAggregate.addChild(preGroup);
+			phaseOut.addChild(preAggregate);
+		}
+		else {
+			phaseOut.addChild(preGroup);
+		}
 		shuffle.addChild(phaseOut);
 		phaseIn.addChild(shuffle);
 		postGroup.addChild(phaseIn);
@@ -320,54 +384,78 @@ public class ShuffleRewrite extends Walker {
 		AST phaseOut = createNode(node, XQExt.PhaseOut);
 		AST phaseIn = createNode(node, XQExt.PhaseIn);
 		AST shuffle = createNode(node, XQExt.Shuffle);
-		shuffle.setProperty("skipSort", true);
 		
 		AST next = node.getLastChild();
 		AST parent = node.getParent();
 		
 		node.deleteChild(node.getChildCount() - 1);	
 		ArrayList<Integer> keyIndexes = new ArrayList<Integer>(node.getChildCount());
+		ArrayList<Boolean> keyDesc = new ArrayList<Boolean>(node.getChildCount());
+		ArrayList<Boolean> keyLeast = new ArrayList<Boolean>(node.getChildCount());
+		boolean rawSort = true;
 		
 		// TODO add rule to extract order by key into variable
 		for (int i = 0; i < node.getChildCount(); i++) {
 			AST shuffleSpec = XQExt.createNode(XQExt.ShuffleSpec);
 			AST orderSpec = node.getChild(i);
 			AST varRef = orderSpec.getChild(0);
+			boolean desc = false;
+			boolean least = true;
 			
 			keyIndexes.add((Integer) varRef.getProperty("pos"));
-			shuffleSpec.addChild(varRef);
+			shuffleSpec.addChild(varRef.copy());
 			
 			for (int j = 1; j < orderSpec.getChildCount(); j++) {
-				AST modifier = orderSpec.getChild(i);
+				AST modifier = orderSpec.getChild(j);
 				if (modifier.getType() == XQ.OrderByKind) {
 					AST direction = modifier.getChild(0);
-					if (direction.getType() == XQ.DESCENDING) {
-						shuffleSpec.setProperty("desc", true);
-					}
+					desc = (direction.getType() == XQ.DESCENDING);
 				} else if (modifier.getType() == XQ.OrderByEmptyMode) {
 					AST empty = modifier.getChild(0);
-					if (empty.getType() == XQ.LEAST) {
-						shuffleSpec.setProperty("least", true);
-					}
+					least = (empty.getType() == XQ.LEAST);
 				} else if (modifier.getType() == XQ.Collation) {
-					shuffleSpec.setProperty("collation", modifier.getChild(0).getStringValue());
+					String collation = modifier.getChild(0).getStringValue();
+					shuffleSpec.setProperty("collation", collation);
+					// encoded keys compare by codepoint only
+					if (!CODEPOINT_COLLATION.equals(collation)) {
+						rawSort = false;
+					}
 				}
 			}
 			
+			shuffleSpec.setProperty("desc", desc);
+			shuffleSpec.setProperty("least", least);
+			keyDesc.add(desc);
+			keyLeast.add(least);
 			phaseOut.addChild(shuffleSpec);
 		}
 		
 		phaseIn.setProperty("keyIndexes", keyIndexes);
 		phaseOut.setProperty("keyIndexes", keyIndexes);
 		shuffle.setProperty("keyIndexes", keyIndexes);
+		phaseIn.setProperty("keyDesc", keyDesc);
+		phaseOut.setProperty("keyDesc", keyDesc);
+		shuffle.setProperty("keyDesc", keyDesc);
+		phaseIn.setProperty("keyLeast", keyLeast);
+		phaseOut.setProperty("keyLeast", keyLeast);
+		shuffle.setProperty("keyLeast", keyLeast);
 		
-		node.setProperty("local", true);
-		
-		node.addChild(next);
-		phaseOut.addChild(node);
+		phaseOut.addChild(next);
 		shuffle.addChild(phaseOut);
 		phaseIn.addChild(shuffle);
-		parent.replaceChild(parent.getChildCount() - 1, phaseIn);
+		
+		if (rawSort) {
+			// the shuffle sort on the encoded keys already yields the final order,
+			// and range partitioning makes it total across reducers
+			shuffle.setProperty("totalOrder", true);
+			parent.replaceChild(parent.getChildCount() - 1, phaseIn);
+		}
+		else {
+			// keys are only grouped by the shuffle -> sort locally in the reducer
+			node.setProperty("local", true);
+			node.addChild(phaseIn);
+			parent.replaceChild(parent.getChildCount() - 1, node);
+		}
 		
 		return parent;
 	}
@@ -1,35 +1,43 @@
 package org.brackit.xquery.compiler.optimizer.walker;
 
+import org.brackit.hadoop.collection.DistrCacheCollection;
 import org.brackit.xquery.compiler.AST;
 import org.brackit.xquery.compiler.XQ;
+import org.brackit.xquery.module.StaticContext;
 import org.brackit.xquery.xdm.Collection;
 import org.brackit.xquery.xdm.NS;
 import org.brackit.xquery.xdm.atomic.QNm;
 
 public class SwitchJoinType extends Walker {
 
+	public SwitchJoinType(StaticContext sctx)
+	{
+		super(sctx);
+	}
+	
 	@Override
 	protected AST visit(AST node)
 	{
-		if (node.getType() != XQ.Join || node.getChildCount() != 2) {
+		if (node.getType() != XQ.Join || node.getChildCount() < 2) {
 			return node;
 		}
 		
 		AST left = node.getChild(0);
 		AST right = node.getChild(1);
 		
-		// if either left or right input is "small", set FR join
-		if (findForOnSmallCollection(left)) {
+		/*
+		 * If either left or right input is "small", set FR join and remember
+		 * which side is used as build input for the map-side hash join. The
+		 * inputs are not swapped, because the tuple layout (i.e., variable
+		 * positions) of the join output has already been fixed.
+		 */
+		if (findForOnSmallCollection(left.getLastChild())) {
 			node.setProperty("fr", true);
+			node.setProperty("frBuild", 0);
 		}
-		else if (findForOnSmallCollection(right)) {
-			// if small input on right side, move it to left, so it can be used
-			// as the build input for the hash join
-			node.deleteChild(1);
-			node.deleteChild(0);
-			node.addChild(right);
-			node.addChild(left);
+		else if (findForOnSmallCollection(right.getLastChild())) {
 			node.setProperty("fr", true);
+			node.setProperty("frBuild", 1);
 		}
 		
 		return node;
@@ -75,12 +83,10 @@ public class SwitchJoinType extends Walker {
 				return false;
 			}
 			
-			//return coll instanceof DistCacheCollection;
-			return false;
+			return coll instanceof DistrCacheCollection;
 		case XQ.LetBind:
 		case XQ.Selection:
-		case XQ.GroupBy:
-		case XQ.OrderBy:
+			// group-by and order-by would require a shuffle of the build input
 			return findForOnSmallCollection(node.getLastChild());
 		default:
 			return false;
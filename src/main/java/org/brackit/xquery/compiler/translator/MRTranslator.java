@@ -29,8 +29,10 @@ package org.brackit.xquery.compiler.translator;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Stack;
 
 import org.apache.hadoop.conf.Configuration;
+import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryException;
 import org.brackit.xquery.compiler.AST;
@@ -40,9 +42,13 @@ import org.brackit.xquery.expr.Expr;
 import org.brackit.xquery.expr.HDFSOutputExpr;
 import org.brackit.xquery.expr.HadoopExpr;
 import org.brackit.xquery.expr.PhaseOutExpr;
-import org.brackit.xquery.operator.HashPostJoin;
+import org.brackit.xquery.operator.ArrayHashPostJoin;
+import org.brackit.xquery.operator.MapHashJoin;
+import org.brackit.xquery.operator.MapMergeJoin;
+import org.brackit.xquery.operator.MultiHashPostJoin;
 import org.brackit.xquery.operator.Operator;
 import org.brackit.xquery.operator.PhaseIn;
+import org.brackit.xquery.operator.PreAggregate;
 import org.brackit.xquery.xdm.atomic.QNm;
 import org.brackit.xquery.xdm.atomic.Str;
 import org.brackit.xquery.xdm.type.SequenceType;
@@ -50,6 +56,7 @@ import org.brackit.xquery.xdm.type.SequenceType;
 public class MRTranslator extends BottomUpTranslator {
 
 	private final Configuration conf;
+	private final Stack<PreAggregate> preAggregates = new Stack<PreAggregate>();
 	
 	public MRTranslator(Configuration configuration, Map<QNm, Str> options)
 	{
@@ -84,6 +91,22 @@ public class MRTranslator extends BottomUpTranslator {
 		else if (node.getType() == XQExt.PostJoin) {
 			return postJoin(node);
 		}
+		else if (node.getType() == XQExt.PreAggregate) {
+			return preAggregate(node);
+		}
+		else if (node.getType() == XQExt.MapJoin) {
+			return mapJoin(node);
+		}
+		else if (node.getType() == XQExt.MergeJoin) {
+			return mergeJoin(node);
+		}
+		else if (isPreAggregateInput(node)) {
+			// translate the actual input and feed it to the group-by in chunks
+			PreAggregate preAggregate = preAggregates.pop();
+			preAggregate.setInput(anyOp(node));
+			preAggregates.push(preAggregate);
+			return preAggregate.getChunkInput();
+		}
 		if (node.getType() == XQ.Start) {
 			return start(node);
 		}
@@ -110,7 +133,8 @@ public class MRTranslator extends BottomUpTranslator {
 		Integer tag = (Integer) node.getProperty("tag");
 		if (tag == null) tag = 0;
 		
-		return new PhaseOutExpr(anyOp(node.getLastChild()), indexes, node.checkProperty("isJoin"), tag);
+		return new PhaseOutExpr(anyOp(node.getLastChild()), indexes, node.checkProperty("isJoin"), tag,
+				node.checkProperty("bloomBuild"));
 	}
 	
 	protected Expr end(AST node) throws QueryException
@@ -138,13 +162,67 @@ public class MRTranslator extends BottomUpTranslator {
 		return new PhaseIn(size);
 	}
 	
+	protected Operator preAggregate(AST node) throws QueryException
+	{
+		@SuppressWarnings("unchecked")
+		List<Integer> keyIndexes = (List<Integer>) node.getProperty("keyIndexes");
+		int[] indexes = new int[keyIndexes.size()];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = keyIndexes.get(i);
+		}
+		int maxGroups = conf.getInt(XQueryJobConf.PROP_PRE_AGGREGATE_GROUPS, 100000);
+		double minFreeMemory = conf.getFloat(XQueryJobConf.PROP_PRE_AGGREGATE_FREE_MEMORY, 0.2f);
+		
+		PreAggregate preAggregate = new PreAggregate(indexes, maxGroups, minFreeMemory);
+		preAggregates.push(preAggregate);
+		preAggregate.setGroupBy(anyOp(node.getLastChild()));
+		preAggregates.pop();
+		return preAggregate;
+	}
+	
+	private boolean isPreAggregateInput(AST node)
+	{
+		AST groupBy = node.getParent();
+		return !preAggregates.isEmpty() && groupBy != null
+				&& groupBy.getType() == XQ.GroupBy
+				&& groupBy.getLastChild() == node
+				&& groupBy.getParent() != null
+				&& groupBy.getParent().getType() == XQExt.PreAggregate;
+	}
+	
+	protected Operator mapJoin(AST node) throws QueryException
+	{
+		Operator build = anyOp(node.getChild(0));
+		Operator probe = anyOp(node.getLastChild());
+		int buildKey = (Integer) node.getChild(1).getProperty("pos");
+		int probeKey = (Integer) node.getChild(2).getProperty("pos");
+		return new MapHashJoin(build, buildKey, probe, probeKey, node.checkProperty("buildLeft"), conf);
+	}
+	
+	protected Operator mergeJoin(AST node) throws QueryException
+	{
+		@SuppressWarnings("unchecked")
+		List<List<Integer>> keyIndexes = (List<List<Integer>>) node.getProperty("keyIndexesMap");
+		@SuppressWarnings("unchecked")
+		List<List<SequenceType>> typesMap = (List<List<SequenceType>>) node.getProperty("typesMap");
+		int width = typesMap.get(typesMap.size() - 1).size();
+		return new MapMergeJoin(keyIndexes.get(0).get(0), keyIndexes.get(1).get(0), width, conf);
+	}
+	
 	protected Operator postJoin(AST node) throws QueryException
 	{
 		Operator in = anyOp(node.getChild(0));
 		@SuppressWarnings("unchecked")
 		List<List<Integer>> keyIndexes = (List<List<Integer>>) node.getProperty("keyIndexesMap");
 		// TODO: composed join keys?
-		return new HashPostJoin(in, keyIndexes.get(0).get(0), keyIndexes.get(1).get(0), conf);
+		if (keyIndexes.size() > 2) {
+			int[] indexes = new int[keyIndexes.size()];
+			for (int i = 0; i < indexes.length; i++) {
+				indexes[i] = keyIndexes.get(i).get(0);
+			}
+			return new MultiHashPostJoin(in, indexes, conf);
+		}
+		return new ArrayHashPostJoin(in, keyIndexes.get(0).get(0), keyIndexes.get(1).get(0), conf);
 	}
 
 }
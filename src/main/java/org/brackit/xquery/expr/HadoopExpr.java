@@ -29,12 +29,33 @@ package org.brackit.xquery.expr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.brackit.hadoop.collection.HadoopCSVCollection;
+import org.brackit.hadoop.job.BloomFilterBuilder;
+import org.brackit.hadoop.job.DictionaryBuilder;
+import org.brackit.hadoop.job.KeySampler;
+import org.brackit.hadoop.job.LocalExecutor;
+import org.brackit.hadoop.job.PlanFile;
 import org.brackit.hadoop.job.XQueryJob;
 import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.hadoop.runtime.ClientContext;
 import org.brackit.hadoop.runtime.HadoopQueryContext;
 import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryContext;
@@ -47,24 +68,58 @@ import org.brackit.xquery.module.StaticContext;
 import org.brackit.xquery.util.Cfg;
 import org.brackit.xquery.util.SequenceUtil;
 import org.brackit.xquery.util.dot.DotUtil;
+import org.brackit.xquery.xdm.Collection;
 import org.brackit.xquery.xdm.Item;
 import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
 import org.brackit.xquery.xdm.atomic.Bool;
+import org.brackit.xquery.xdm.atomic.QNm;
 
 public final class HadoopExpr implements Expr {
 
+	private static final Log LOG = LogFactory.getLog(HadoopExpr.class);
+	
 	private static boolean DELETE_EXISTING = Cfg.asBool(XQueryJobConf.PROP_DELETE_EXISTING, false);
 	
 	private final Configuration conf;
 	private final AST ast;
 	private final StaticContext sctx;
+	private final ArrayList<QNm[]> recordSchemas;
+	private final ArrayList<HadoopCSVCollection> csvCollections;
+	private String[] dictionary;
 	
 	public HadoopExpr(StaticContext sctx, AST ast, Configuration conf)
 	{
 		this.conf = conf;
 		this.ast = ast;
 		this.sctx = sctx;
+		this.recordSchemas = new ArrayList<QNm[]>();
+		this.csvCollections = new ArrayList<HadoopCSVCollection>();
+		collectRecordSchemas(ast, new HashSet<String>());
+	}
+	
+	/*
+	 * Registers the field names of all CSV collections scanned by the query,
+	 * so that all its jobs serialize records against the same schemas
+	 */
+	private void collectRecordSchemas(AST node, Set<String> names)
+	{
+		if (node.getType() == XQ.FunctionCall && node.getChildCount() > 0
+				&& node.getChild(0).getType() == XQ.Str) {
+			String collName = node.getChild(0).getStringValue();
+			Collection<?> coll = names.add(collName) ? sctx.getCollections().resolve(collName) : null;
+			if (coll instanceof HadoopCSVCollection) {
+				csvCollections.add((HadoopCSVCollection) coll);
+				QNm[] fields = ((HadoopCSVCollection) coll).getFieldNames();
+				// field masks are written as a single long
+				if (fields.length <= 64) {
+					recordSchemas.add(fields);
+				}
+			}
+		}
+		for (int i = 0; i < node.getChildCount(); i++) {
+			collectRecordSchemas(node.getChild(i), names);
+		}
 	}
 	
 	public Sequence evaluate(QueryContext ctx, Tuple tuple) throws QueryException
@@ -77,13 +132,23 @@ public final class HadoopExpr implements Expr {
 		HadoopQueryContext hctx = (HadoopQueryContext) ctx;
 		ShuffleTree sTree = ShuffleTree.build(ast, null);		
 		try {
+			if (dictionary == null && !csvCollections.isEmpty()
+					&& Cfg.asBool(XQueryJobConf.PROP_DICTIONARY_ENCODING, true)) {
+				dictionary = new DictionaryBuilder(conf, csvCollections).build();
+			}
 			if (sTree != null) {
 				hctx.getClientContext().init(sTree.size());
-				trimJob(sTree, null, 0, hctx, tuple);
+				ArrayList<JobNode> jobs = new ArrayList<JobNode>();
+				trimJob(sTree, null, 0, jobs);
+				LocalExecutor.Outputs outputs = useLocalMode(jobs) ? new LocalExecutor.Outputs() : null;
+				schedule(jobs, hctx, tuple, outputs);
 			}
 			else {
 				hctx.getClientContext().init(1);
-				run(ast, 0, hctx, tuple);
+				JobNode job = new JobNode(ast, 0, new ArrayList<JobNode>());
+				LocalExecutor.Outputs outputs = useLocalMode(Collections.singletonList(job)) ? 
+						new LocalExecutor.Outputs() : null;
+				run(ast, 0, hctx, tuple, outputs);
 			}
 			return new Bool(true);
 		}
@@ -92,13 +157,18 @@ public final class HadoopExpr implements Expr {
 		}
 	}
 	
-	private int trimJob(ShuffleTree s, ShuffleTree parent, int seq, QueryContext ctx, Tuple tuple)
-			throws IOException, QueryException
+	/*
+	 * Splits the query into jobs (depth-first), which are appended to the
+	 * list after the jobs producing their inputs
+	 */
+	private int trimJob(ShuffleTree s, ShuffleTree parent, int seq, List<JobNode> jobs)
 	{
 		// process all inputs (depth-first)
 		int thisSeq = seq;
+		ArrayList<JobNode> inputs = new ArrayList<JobNode>();
 		while (s.children.size() > 0) {
-			seq = trimJob(s.children.get(0), s, seq + 1, ctx, tuple);
+			seq = trimJob(s.children.get(0), s, seq + 1, jobs);
+			inputs.add(jobs.get(jobs.size() - 1));
 		}
 		
 		// detach job ast from parent job's ast
@@ -110,6 +180,7 @@ public final class HadoopExpr implements Expr {
 		if (root.getParent().getType() == XQExt.Shuffle) {
 			AST phaseOut = root.copy();
 			phaseOut.setProperty("inputSeq", thisSeq);
+			recordPartitioning(root, phaseOut);
 			root.getParent().replaceChild(root.getChildIndex(), phaseOut);
 		}
 		else {
@@ -121,17 +192,176 @@ public final class HadoopExpr implements Expr {
 			parent.children.remove(0);
 		}
 		
-		run (root.copyTree(), thisSeq, ctx, tuple);
+		jobs.add(new JobNode(root.copyTree(), thisSeq, inputs));
 		return seq;
 	}
 	
-	private int run(AST root, int seq, QueryContext ctx, Tuple tuple) throws IOException, QueryException
+	/*
+	 * Runs every job as soon as all of its inputs are complete, i.e.,
+	 * independent jobs (e.g., the inputs of a join) run concurrently. If a job
+	 * fails, the jobs still running are killed.
+	 */
+	private void schedule(List<JobNode> jobs, final QueryContext ctx, final Tuple tuple,
+			final LocalExecutor.Outputs outputs) throws IOException, QueryException
+	{
+		ClientContext client = ((HadoopQueryContext) ctx).getClientContext();
+		int threads = Math.max(1, Cfg.asInt(XQueryJobConf.PROP_PARALLEL_JOBS, 4));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+		CompletionService<JobNode> completion = new ExecutorCompletionService<JobNode>(executor);
+		LinkedList<JobNode> pending = new LinkedList<JobNode>(jobs);
+		int running = 0;
+		try {
+			while (!pending.isEmpty() || running > 0) {
+				for (Iterator<JobNode> it = pending.iterator(); it.hasNext(); ) {
+					final JobNode job = it.next();
+					if (isReady(job, client)) {
+						it.remove();
+						completion.submit(new Callable<JobNode>() {
+							public JobNode call() throws Exception {
+								run(job.root, job.seq, ctx, tuple, outputs);
+								return job;
+							}
+						});
+						running++;
+					}
+				}
+				JobNode done = completion.take().get();
+				running--;
+				client.completeJob(done.seq);
+			}
+		}
+		catch (ExecutionException e) {
+			client.abort();
+			Throwable cause = e.getCause();
+			if (cause instanceof QueryException) {
+				throw (QueryException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+		catch (InterruptedException e) {
+			client.abort();
+			throw new IOException(e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private boolean isReady(JobNode job, ClientContext client)
+	{
+		for (JobNode input : job.inputs) {
+			if (!client.isCompleted(input.seq)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Decides whether the jobs of the query are executed in-process (see
+	 * LocalExecutor) instead of being submitted to the cluster. In "auto"
+	 * mode, this is the case if the total size of the inputs read by the
+	 * leaf jobs is below the local threshold. A mode set in the
+	 * configuration of the query overrides the global default.
+	 */
+	private boolean useLocalMode(List<JobNode> jobs) throws IOException
+	{
+		if (Cfg.asBool(XQueryJobConf.PROP_RAW_ID_MAPPER, false)) {
+			// the raw id mapper copies intermediate part files directly
+			return false;
+		}
+		String mode = conf.get(XQueryJobConf.PROP_LOCAL_MODE, Cfg.asString(XQueryJobConf.PROP_LOCAL_MODE, "auto"));
+		if (!mode.equals("auto")) {
+			return Boolean.parseBoolean(mode);
+		}
+		
+		long threshold = Cfg.asLong(XQueryJobConf.PROP_LOCAL_THRESHOLD, 64L * 1024 * 1024);
+		long size = 0;
+		for (JobNode job : jobs) {
+			if (!job.inputs.isEmpty()) {
+				continue;
+			}
+			XQueryJobConf jobConf = new XQueryJobConf(conf);
+			jobConf.setBoolean(XQueryJobConf.PROP_MAP_MERGE_JOIN, false);
+			jobConf.setAst(job.root.copyTree());
+			jobConf.setStaticContext(sctx);
+			jobConf.parseInputsAndOutputs();
+			String[] paths = jobConf.getInputPaths();
+			if (paths == null || paths.length < jobConf.getInputFormats().size()) {
+				// size of non-file inputs is unknown
+				return false;
+			}
+			for (String path : paths) {
+				Path p = new Path(path);
+				FileSystem fs = p.getFileSystem(jobConf);
+				if (!fs.exists(p)) {
+					return false;
+				}
+				size += fs.getContentSummary(p).getLength();
+				if (size >= threshold) {
+					return false;
+				}
+			}
+		}
+		LOG.info(String.format("Executing query locally (input size: %d bytes)", size));
+		return true;
+	}
+	
+	/*
+	 * The output of a job whose reducers group by a single ascending key is
+	 * hash-partitioned on that key and, if the post-group emits the groups in
+	 * the order of the sorted shuffle ("sequential", see ShuffleRewrite),
+	 * sorted by it within each part file. Record this on the placeholder of
+	 * the job, so that a join of two such outputs can be executed as a
+	 * map-side merge join (see XQueryJobConf). Hash-based post-groups emit
+	 * groups in arbitrary order.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recordPartitioning(AST root, AST phaseOut)
+	{
+		AST node = root.getLastChild();
+		AST postGroup = null;
+		while (node != null && (node.getType() == XQ.GroupBy || node.getType() == XQ.LetBind
+				|| node.getType() == XQ.Selection)) {
+			if (node.getType() == XQ.GroupBy) {
+				postGroup = node;
+			}
+			node = node.getLastChild();
+		}
+		if (node == null || node.getType() != XQExt.PhaseIn
+				|| postGroup == null || !postGroup.checkProperty("sequential")) {
+			return;
+		}
+		AST shuffle = node.getLastChild();
+		List<Integer> keyIndexes = (List<Integer>) shuffle.getProperty("keyIndexes");
+		List<Boolean> keyDesc = (List<Boolean>) shuffle.getProperty("keyDesc");
+		if (keyIndexes == null || keyIndexes.size() != 1 || shuffle.checkProperty("isJoin")
+				|| shuffle.checkProperty("skipSort") || shuffle.checkProperty("totalOrder")
+				|| (keyDesc != null && keyDesc.contains(Boolean.TRUE))) {
+			return;
+		}
+		phaseOut.setProperty("sortedBy", keyIndexes.get(0));
+		phaseOut.setProperty("partitions", new XQueryJobConf(conf).getNumReduceTasks());
+	}
+	
+	private int run(AST root, int seq, QueryContext ctx, Tuple tuple, LocalExecutor.Outputs outputs)
+			throws IOException, QueryException
 	{
 		HadoopQueryContext hctx = (HadoopQueryContext) ctx;
+		boolean local = (outputs != null);
 		
 		XQueryJobConf jobConf = new XQueryJobConf(conf);
+		if (local) {
+			// intermediate outputs are not written to part files
+			jobConf.setBoolean(XQueryJobConf.PROP_MAP_MERGE_JOIN, false);
+		}
 		jobConf.setAst(root);
 		jobConf.setStaticContext(sctx);
+		jobConf.setRecordSchemas(recordSchemas);
+		jobConf.setStringDictionary(dictionary);
 		jobConf.setSeqNumber(seq);
 		if (tuple != null) {
 			jobConf.setTuple(tuple);
@@ -139,7 +369,26 @@ public final class HadoopExpr implements Expr {
 		jobConf.parseInputsAndOutputs();
 		XQueryJob job = new XQueryJob(jobConf);
 		job.setJarByClass(HadoopExpr.class);
-
+		
+		if (local) {
+			// a single sorted partition needs no sampled split points
+			if (job.isTotalOrder()) {
+				job.setNumReduceTasks(Math.min(1, job.getNumReduceTasks()));
+			}
+		}
+		else {
+			if (job.isTotalOrder() && job.getNumReduceTasks() > 1) {
+				new KeySampler(job).sample();
+			}
+			
+			if (job.isSkewJoin() && job.getNumReduceTasks() > 1) {
+				new KeySampler(job).sampleHotKeys();
+			}
+			
+			if (job.isBloomJoin()) {
+				new BloomFilterBuilder(job, conf).build();
+			}
+		}
 		
 		if (XQuery.DEBUG) {
 			DotUtil.drawDotToFile(root.flworDot(), XQuery.DEBUG_DIR, "plan_job" + seq);
@@ -153,10 +402,21 @@ public final class HadoopExpr implements Expr {
 			}
 		}
 		
+		if (local) {
+			new LocalExecutor(job, outputs).run();
+			return 0;
+		}
+		
+		Path planPath = null;
+		if (Cfg.asBool(XQueryJobConf.PROP_PLAN_SHIPPING, true)) {
+			planPath = new Path(jobConf.getOutputDir() + ".plan");
+			PlanFile.ship(job.getConfiguration(), planPath);
+		}
+		
 		boolean status;
 		try {
 			job.submit();
-			hctx.getClientContext().attachJob(seq, job.getJobID());
+			hctx.getClientContext().attachJob(seq, job);
 			status = job.waitForCompletion(true);
 			if (!status) {
 				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
@@ -165,6 +425,11 @@ public final class HadoopExpr implements Expr {
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		finally {
+			if (planPath != null) {
+				planPath.getFileSystem(jobConf).delete(planPath, false);
+			}
+		}
 		
 		return 0;
 	}
@@ -185,6 +450,19 @@ public final class HadoopExpr implements Expr {
 		return false;
 	}
 	
+	private static class JobNode {
+		final AST root;
+		final int seq;
+		final List<JobNode> inputs;
+		
+		JobNode(AST root, int seq, List<JobNode> inputs)
+		{
+			this.root = root;
+			this.seq = seq;
+			this.inputs = inputs;
+		}
+	}
+	
 	private static class ShuffleTree {
 		AST shuffle;
 		ArrayList<ShuffleTree> children = new ArrayList<ShuffleTree>();
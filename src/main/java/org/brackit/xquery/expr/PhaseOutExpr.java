@@ -1,8 +1,18 @@
 package org.brackit.xquery.expr;
 
 import java.io.IOException;
+import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.brackit.hadoop.job.BloomFilterBuilder;
+import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.hadoop.runtime.HadoopQueryContext;
 import org.brackit.hadoop.runtime.XQGroupingKey;
 import org.brackit.xquery.ErrorCode;
@@ -14,22 +24,35 @@ import org.brackit.xquery.util.SequenceUtil;
 import org.brackit.xquery.xdm.Item;
 import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.TupleImpl;
+import org.brackit.xquery.xdm.atomic.Atomic;
 import org.brackit.xquery.xdm.atomic.Bool;
 import org.brackit.xquery.xdm.atomic.Int32;
 
 public class PhaseOutExpr implements Expr {
 
+	private static final Log LOG = LogFactory.getLog(PhaseOutExpr.class);
+	
 	private final Operator in;
 	private final int[] keyIndexes;
 	private final boolean isJoin;
-	private final Int32 tag;
+	private final int tag;
+	private final Int32 tagColumn;
+	private final boolean bloomBuild;
 	
 	public PhaseOutExpr(Operator in, int[] keyIndexes, boolean isJoin, int tag)
+	{
+		this(in, keyIndexes, isJoin, tag, false);
+	}
+	
+	public PhaseOutExpr(Operator in, int[] keyIndexes, boolean isJoin, int tag, boolean bloomBuild)
 	{
 		this.in = in;
 		this.keyIndexes = keyIndexes;
 		this.isJoin = isJoin;
-		this.tag = new Int32(tag);
+		this.tag = tag;
+		this.tagColumn = new Int32(tag);
+		this.bloomBuild = bloomBuild;
 	}
 	
 	public Sequence evaluate(QueryContext ctx, Tuple tuple)
@@ -44,20 +67,75 @@ public class PhaseOutExpr implements Expr {
 		c.open(hctx);
 		
 		try {
-			Tuple t = c.next(hctx);
-			XQGroupingKey key = null;
-			if (t == null) {
-				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
-						"PhaseOut produced empty output");
+			if (bloomBuild) {
+				buildFilter(hctx, context, c);
+				c.close(ctx);
+				return new Bool(true);
 			}
+			
+			// probe side of a join with semi-join reduction
+			BloomFilter filter = (isJoin && tag == 0) ?
+					BloomFilterBuilder.loadFilter(context.getConfiguration()) : null;
+			int dropped = 0;
+			
+			// hot keys of a skewed join: probe tuples are spread, build tuples replicated
+			Map<Atomic, Integer> hotKeys = 
+					(isJoin && context.getConfiguration().get(XQueryJobConf.PROP_SKEW_KEYS) != null) ?
+					new XQueryJobConf(context.getConfiguration()).getHotKeys() : null;
+			int nextSalt = context.getTaskAttemptID().getTaskID().getId();
+			
+			// pushed-down predicates may leave a task without output
+			Tuple t = c.next(hctx);
+			
+			/*
+			 * Key and output tuple are refilled for every tuple, since the output
+			 * context serializes them on write. Key columns are not cleared in
+			 * the tuple, as the serializer skips them anyway.
+			 */
+			XQGroupingKey key = new XQGroupingKey(keyIndexes, isJoin, tag);
+			Sequence[] tagged = null;
+			Tuple out = t;
 			while (t != null) {
+				if (filter != null && 
+						!filter.membershipTest(BloomFilterBuilder.key(t.array()[keyIndexes[0]]))) {
+					dropped++;
+					t = c.next(hctx);
+					continue;
+				}
 				if (isJoin) {
-					t = t.concat(tag);
+					// append the tag column
+					int width = t.getSize();
+					if (tagged == null || tagged.length != width + 1) {
+						tagged = new Sequence[width + 1];
+						tagged[width] = tagColumn;
+						out = new TupleImpl(tagged);
+					}
+					System.arraycopy(t.array(), 0, tagged, 0, width);
+				}
+				else {
+					out = t;
+				}
+				key.reset(out);
+				Integer fanOut = (hotKeys != null) ? hotKeys.get(key.getKeyAt(0)) : null;
+				if (fanOut == null) {
+					context.write(key, out);
+				}
+				else if (tag == 0) {
+					nextSalt = (nextSalt + 1) & Integer.MAX_VALUE;
+					key.setSalt(nextSalt % fanOut);
+					context.write(key, out);
+				}
+				else {
+					for (int salt = 0; salt < fanOut; salt++) {
+						key.setSalt(salt);
+						context.write(key, out);
+					}
 				}
-				key = new XQGroupingKey(t, isJoin, tag.v, keyIndexes);
-				context.write(key, t);
 				t = c.next(hctx);
 			}
+			if (filter != null) {
+				LOG.info(String.format("Bloom filter dropped %d probe tuples", dropped));
+			}
 		}
 		catch (InterruptedException e) {
 			throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
@@ -71,6 +149,30 @@ public class PhaseOutExpr implements Expr {
 		return new Bool(true);
 	}
 
+	private void buildFilter(HadoopQueryContext hctx, TaskInputOutputContext<?, ?, ?, ?> context, Cursor c)
+			throws QueryException, IOException, InterruptedException
+	{
+		BloomFilter filter = BloomFilterBuilder.createFilter(context.getConfiguration());
+		int count = 0;
+		for (Tuple t = c.next(hctx); t != null; t = c.next(hctx)) {
+			filter.add(BloomFilterBuilder.key(t.array()[keyIndexes[0]]));
+			count++;
+		}
+		
+		// written next to the task output, so that it is committed with it
+		Path path = new Path(FileOutputFormat.getWorkOutputPath(context), 
+				FileOutputFormat.getUniqueFile(context, BloomFilterBuilder.FILTER_PREFIX, ""));
+		FileSystem fs = path.getFileSystem(context.getConfiguration());
+		FSDataOutputStream out = fs.create(path, false);
+		try {
+			filter.write(out);
+		}
+		finally {
+			out.close();
+		}
+		LOG.info(String.format("Added %d build keys to Bloom filter", count));
+	}
+
 	public Item evaluateToItem(QueryContext ctx, Tuple tuple)
 			throws QueryException
 	{
@@ -27,12 +27,17 @@
  */
 package org.brackit.xquery.operator;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.brackit.hadoop.io.TupleSpill;
 import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryContext;
 import org.brackit.xquery.QueryException;
 import org.brackit.xquery.xdm.OperationNotSupportedException;
@@ -40,93 +45,130 @@ import org.brackit.xquery.xdm.Tuple;
 import org.brackit.xquery.xdm.atomic.Atomic;
 import org.brackit.xquery.xdm.atomic.Int32;
 
+/**
+ * Hybrid hash join over the tagged reduce input of a join shuffle, where
+ * each hash partition delivers the build tuples (tag 1) before the probe
+ * tuples (tag 0).
+ * 
+ * The build tuples of a partition are assigned to sub-partitions. When more
+ * tuples than the configured budget are held in memory, the largest resident
+ * sub-partition is spilled to local disk, together with all build and probe
+ * tuples which fall into it afterwards. Once the probe tuples of the partition
+ * are consumed, each pair of spilled sub-partitions is joined by a nested
+ * instance with a different sub-partitioning hash. Beyond a maximum nesting
+ * level (e.g., a single key exceeding the budget) nothing is spilled anymore.
+ * 
+ */
 public class ArrayHashPostJoin implements Operator {
 
 	private static final Log LOG = LogFactory.getLog(ArrayHashPostJoin.class);
 	
+	private static final int MAX_SPILL_LEVEL = 3;
+	
 	private final int HASH_TABLE_SIZE;
-	private final int HASH_BUCKET_SIZE;
 	private final boolean COMPUTE_STATS;
+	private final int MEMORY_TUPLES;
+	private final int SPILL_PARTITIONS;
 	
 	protected Operator taggedInput;
 	protected int leftKeyIndex;
 	protected int rightKeyIndex;
-	protected Tuple[][] table;
-	protected int[] lengths;
+	protected JoinHashTable table;
+	
+	private final Configuration conf;
+	private final int level;
+	protected TupleSpill[] buildSpills;
+	protected TupleSpill[] probeSpills;
 	
 	public ArrayHashPostJoin(Operator input, int leftKeyIndex, int rightKeyIndex, Configuration conf)
+	{
+		this(input, leftKeyIndex, rightKeyIndex, conf, 0);
+	}
+	
+	protected ArrayHashPostJoin(Operator input, int leftKeyIndex, int rightKeyIndex, Configuration conf, int level)
 	{
 		this.taggedInput = input;
 		this.leftKeyIndex = leftKeyIndex;
 		this.rightKeyIndex = rightKeyIndex;
+		this.conf = conf;
+		this.level = level;
 		
 		HASH_TABLE_SIZE = conf.getInt(XQueryJobConf.PROP_HASH_TABLE_SIZE, 8192);
-		HASH_BUCKET_SIZE = conf.getInt(XQueryJobConf.PROP_HASH_BUCKET_SIZE, 3);
 		COMPUTE_STATS = conf.getBoolean(XQueryJobConf.PROP_COMPUTE_HASH_TABLE_STATS, true);
+		MEMORY_TUPLES = conf.getInt(XQueryJobConf.PROP_JOIN_MEMORY_TUPLES, 1000000);
+		SPILL_PARTITIONS = Math.max(2, conf.getInt(XQueryJobConf.PROP_JOIN_SPILL_PARTITIONS, 16));
 		
-		table = new Tuple[HASH_TABLE_SIZE][HASH_BUCKET_SIZE];
-		lengths = new int[HASH_TABLE_SIZE];
+		table = new JoinHashTable(rightKeyIndex, HASH_TABLE_SIZE);
 	}
 	
-	protected void put(Atomic v, Tuple tuple)
-	{
-//		System.out.println("Adding to hash table " + tuple);
-		int b = getBucket(v);
-		if (table[b].length == lengths[b]) {
-			table[b] = Arrays.copyOf(table[b], lengths[b] + HASH_BUCKET_SIZE);
-		}
-		table[b][lengths[b]] = tuple;
-		lengths[b]++;
-	}
-
 	protected Tuple buildHashTable(Tuple first, Cursor in, QueryContext ctx) throws QueryException
 	{
-		for (int i = 0; i < table.length; i++) {
-			lengths[i] = 0;
-			// TODO: should we set all references in a bucket to null
-			// to free memory from previous table? Does that make sense? 
+		table.clear();
+		buildSpills = new TupleSpill[SPILL_PARTITIONS];
+		probeSpills = new TupleSpill[SPILL_PARTITIONS];
+		
+		List<List<Tuple>> parts = new ArrayList<List<Tuple>>(SPILL_PARTITIONS);
+		for (int i = 0; i < SPILL_PARTITIONS; i++) {
+			parts.add(new ArrayList<Tuple>());
 		}
 		
 		Tuple t = first != null ? first : in.next(ctx);
 		int count = 0;
-		while (t != null) {
-			int tag = ((Int32) t.array()[t.getSize() - 1]).v;
-			if (tag == 1) {
-				Tuple proj = t.project(0, t.getSize() - 1);
-				put((Atomic) proj.array()[rightKeyIndex], proj);
-				t = in.next(ctx);
-				count++;
+		int inMemory = 0;
+		int spilled = 0;
+		try {
+			while (t != null) {
+				int tag = ((Int32) t.array()[t.getSize() - 1]).v;
+				if (tag == 1) {
+					int p = getSubPartition((Atomic) t.array()[rightKeyIndex]);
+					if (buildSpills[p] != null) {
+						buildSpills[p].write(t);
+						spilled++;
+					}
+					else {
+						parts.get(p).add(t);
+						if (++inMemory > MEMORY_TUPLES && MEMORY_TUPLES > 0 && level < MAX_SPILL_LEVEL) {
+							int victim = 0;
+							for (int i = 1; i < parts.size(); i++) {
+								if (parts.get(i).size() > parts.get(victim).size()) victim = i;
+							}
+							buildSpills[victim] = new TupleSpill(conf, new int[] { leftKeyIndex, rightKeyIndex });
+							for (Tuple s : parts.get(victim)) {
+								buildSpills[victim].write(s);
+							}
+							inMemory -= parts.get(victim).size();
+							spilled += parts.get(victim).size();
+							parts.set(victim, new ArrayList<Tuple>());
+						}
+					}
+					t = in.next(ctx);
+					count++;
+				}
+				else {
+					break;
+				}
 			}
-			else {
-				break;
+		}
+		catch (IOException e) {
+			throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+		}
+		
+		for (int i = 0; i < parts.size(); i++) {
+			for (Tuple s : parts.get(i)) {
+				table.put((Atomic) s.array()[rightKeyIndex], s.project(0, s.getSize() - 1));
 			}
+			parts.set(i, null);
+		}
+		
+		if (spilled > 0) {
+			LOG.info(String.format("Spilled %d of %d build tuples at level %d", spilled, count, level));
 		}
 		
-		LOG.info(String.format("Built hash table with %d buckets and %d tuples", lengths.length, count));
+		LOG.info(String.format("Built hash table with %d slots and %d tuples", table.capacity(), table.size()));
 		
 		if (COMPUTE_STATS) {
-			int maxLen = 0;
-			int minLen = HASH_TABLE_SIZE;
-			int sumLen = 0;
-			int zeroLen = 0;
-			for (int i = 0; i < lengths.length; i++) {
-				int l = lengths[i];
-				if (l > maxLen) maxLen = l;
-				if (l == 0) zeroLen++;
-				else if (l < minLen) minLen = l;
-				sumLen += l;
-			}
-			
-			float avgLen = (float) sumLen / lengths.length;
-			float stdDev = 0;
-			for (int i = 0; i < lengths.length; i++) {
-				stdDev += Math.abs(lengths[i] - avgLen);
-			}
-			stdDev /= lengths.length;
-			
-			LOG.info(String.format("Hash bucket-length statistics: minNonEmpty = %d," +
-					" max = %d, avg = %.2f, stdDev = %.2f, empty = %d", 
-					minLen, maxLen, avgLen, stdDev, zeroLen));
+			LOG.info(String.format("Hash table statistics: load = %.2f, max chain = %d",
+					(float) table.size() / table.capacity(), table.maxChainLength()));
 		}
 		
 		return t;
@@ -143,10 +185,11 @@ public class ArrayHashPostJoin implements Operator {
 		return new Cursor() {
 			
 			Tuple t = first;
-			int width = first.getSize();
-			Tuple[] matches = null;
-			int numMatches;
-			int m = 0;
+			Tuple probe;
+			Atomic probeKey;
+			int slot = -1;
+			Cursor spilled = null;
+			int nextSpill = 0;
 			
 			@Override
 			public void open(QueryContext ctx) throws QueryException {
@@ -156,59 +199,128 @@ public class ArrayHashPostJoin implements Operator {
 			public Tuple next(QueryContext ctx) throws QueryException
 			{
 				// fetch next tuple from (left) input and probe hash table for matches
-				while (matches == null || m >= numMatches) {
-					if (t == null) {
-						return null;
+				while (true) {
+					if (slot >= 0) {
+						Tuple match = table.get(slot);
+						slot = table.next(probeKey, slot);
+						// left columns precede the right ones, the tag is not copied
+						for (int k = 0; k < probe.getSize() - 1; k++) {
+							match.array()[k] = probe.array()[k];
+						}
+						return match;
 					}
-					if (t.array()[t.array().length - 1].equals(Int32.ONE)) {
-						// it fetched tuple actually belongs to right input, rebuild hash table
-						t = buildHashTable(t, in, ctx);
+					if (spilled != null) {
+						Tuple r = spilled.next(ctx);
+						if (r != null) {
+							return r;
+						}
+						spilled.close(ctx);
+						spilled = null;
+					}
+					if (t == null || t.array()[t.array().length - 1].equals(Int32.ONE)) {
+						// probe input of this partition is exhausted, join the spilled pairs
+						spilled = joinNextSpill(ctx);
+						if (spilled != null) {
+							continue;
+						}
 						if (t == null) {
 							return null;
 						}
+						// it fetched tuple actually belongs to right input, rebuild hash table
+						t = buildHashTable(t, in, ctx);
+						nextSpill = 0;
+						continue;
 					}
-					t = t.project(0, width - 1);
-
+					
 					Atomic lKey = (Atomic) t.array()[leftKeyIndex];
-//					System.out.println("Probing match for tuple " + t);
-					int b = getBucket(lKey);
-					Tuple[] probed = table[b];
-					if (lengths[b] == 0) {
+					int p = getSubPartition(lKey);
+					if (buildSpills[p] != null) {
+						spillProbe(p, t);
 						t = in.next(ctx);
 						continue;
 					}
-
-					matches = new Tuple[probed.length];
-					int j = 0;
-					for (int i = 0; i < lengths[b]; i++) {
-						Atomic rKey = (Atomic) probed[i].array()[rightKeyIndex];
-						if (lKey.atomicCmp(rKey) == 0) {
-							for (int k = 0; k < t.getSize(); k++) {
-								probed[i].array()[k] = t.array()[k];
-							}
-							matches[j++] = probed[i];
-						}
-					}
-					numMatches = j;
-					m = 0;
+					
+					probe = t;
+					probeKey = lKey;
+					slot = table.first(lKey);
 					t = in.next(ctx);
 				}
-				return matches[m++];
+			}
+			
+			private Cursor joinNextSpill(QueryContext ctx) throws QueryException
+			{
+				while (nextSpill < buildSpills.length) {
+					int p = nextSpill++;
+					if (buildSpills[p] == null) {
+						continue;
+					}
+					if (probeSpills[p] == null) {
+						// no probe tuple falls into this sub-partition
+						deleteSpill(buildSpills[p]);
+						buildSpills[p] = null;
+						continue;
+					}
+					Operator spill = new SpillInput(buildSpills[p], probeSpills[p]);
+					buildSpills[p] = null;
+					probeSpills[p] = null;
+					Cursor c = new ArrayHashPostJoin(spill, leftKeyIndex, rightKeyIndex, conf, level + 1)
+							.create(ctx, null);
+					c.open(ctx);
+					return c;
+				}
+				return null;
 			}
 			
 			@Override
 			public void close(QueryContext ctx) {
+				if (spilled != null) {
+					spilled.close(ctx);
+				}
+				in.close(ctx);
+				for (int p = 0; p < buildSpills.length; p++) {
+					deleteSpill(buildSpills[p]);
+					deleteSpill(probeSpills[p]);
+				}
 			}
 		};
 	}
 	
-	private final int getBucket(Atomic v)
+	private void spillProbe(int p, Tuple t) throws QueryException
 	{
-		// same hash was already used to create partitions in a single reduce input
-		// thus we have to scramble the hash some more
-		int hash = v.hashCode() >>> 12;
+		try {
+			if (probeSpills[p] == null) {
+				probeSpills[p] = new TupleSpill(conf, new int[] { leftKeyIndex, rightKeyIndex });
+			}
+			probeSpills[p].write(t);
+		}
+		catch (IOException e) {
+			throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+		}
+	}
+	
+	private static void deleteSpill(TupleSpill spill)
+	{
+		if (spill == null) {
+			return;
+		}
+		try {
+			spill.delete();
+		}
+		catch (IOException e) {
+			LOG.warn("Could not delete spill file: " + e.getMessage());
+		}
+	}
+	
+	private final int getSubPartition(Atomic v)
+	{
+		// must be independent of the shuffle partitioning, of the bucket hash,
+		// and of the sub-partitioning of the other levels
+		int hash = XQGroupingKey.hashCode(v) * 0x9E3779B9 + (level + 1) * 0x85EBCA6B;
+		hash ^= (hash >>> 16);
+		hash *= 0x85EBCA6B;
+		hash ^= (hash >>> 13);
 		
-		return (hash & Integer.MAX_VALUE) % table.length;
+		return (hash & Integer.MAX_VALUE) % SPILL_PARTITIONS;
 	}
 	
 	@Override
@@ -224,6 +336,75 @@ public class ArrayHashPostJoin implements Operator {
 		return taggedInput.tupleWidth(initSize);
 	}
 	
-	
+	/**
+	 * Replays a pair of spilled sub-partitions as tagged input: build tuples
+	 * first, then probe tuples. Files are deleted once they are consumed.
+	 */
+	private static class SpillInput implements Operator {
+		
+		private final TupleSpill build;
+		private final TupleSpill probe;
+		
+		SpillInput(TupleSpill build, TupleSpill probe)
+		{
+			this.build = build;
+			this.probe = probe;
+		}
+
+		@Override
+		public Cursor create(QueryContext ctx, Tuple tuple) throws QueryException
+		{
+			return new Cursor() {
+				
+				boolean buildDone = false;
+				
+				@Override
+				public void open(QueryContext ctx) throws QueryException {
+				}
+				
+				@Override
+				public Tuple next(QueryContext ctx) throws QueryException
+				{
+					try {
+						if (!buildDone) {
+							Tuple t = build.read();
+							if (t != null) {
+								return t;
+							}
+							build.delete();
+							buildDone = true;
+						}
+						Tuple t = probe.read();
+						if (t == null) {
+							probe.delete();
+						}
+						return t;
+					}
+					catch (IOException e) {
+						throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+					}
+				}
+				
+				@Override
+				public void close(QueryContext ctx) {
+					deleteSpill(build);
+					deleteSpill(probe);
+				}
+			};
+		}
+		
+		@Override
+		public Cursor create(QueryContext ctx, Tuple[] t, int len)
+				throws QueryException
+		{
+			throw new OperationNotSupportedException();
+		}
+
+		@Override
+		public int tupleWidth(int initSize)
+		{
+			return initSize;
+		}
+	}
 
 }
@@ -0,0 +1,205 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.operator;
+
+import java.util.Arrays;
+
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.atomic.Atomic;
+
+/**
+ * Open-addressing multimap from join keys to build tuples. Entries are kept
+ * in two parallel arrays (hashes and tuples) and collisions are resolved by
+ * linear probing, so all entries of a key are found in the chain which starts
+ * at its home slot and ends at the next empty slot. The hash of each entry is
+ * stored, so that probing compares keys only on hash equality and resizing
+ * does not rehash keys.
+ * 
+ * Probing does not allocate:
+ * 
+ * <pre>
+ * for (int s = table.first(key); s &gt;= 0; s = table.next(key, s)) {
+ * 	Tuple match = table.get(s);
+ * }
+ * </pre>
+ * 
+ */
+public final class JoinHashTable {
+
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private final int keyIndex;
+	private int[] hashes;
+	private Tuple[] tuples;
+	private int mask;
+	private int size;
+	private int threshold;
+	
+	/**
+	 * @param keyIndex position of the key column in the stored tuples
+	 */
+	public JoinHashTable(int keyIndex, int initialCapacity)
+	{
+		this.keyIndex = keyIndex;
+		int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity)
+	{
+		hashes = new int[capacity];
+		tuples = new Tuple[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+	
+	public static int hash(Atomic key)
+	{
+		// the shuffle partitioning already used the low bits of similar hashes
+		int h = XQGroupingKey.hashCode(key) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	public void put(Atomic key, Tuple tuple)
+	{
+		if (size >= threshold) {
+			resize();
+		}
+		insert(hash(key), tuple);
+		size++;
+	}
+	
+	private void insert(int hash, Tuple tuple)
+	{
+		int s = hash & mask;
+		while (tuples[s] != null) {
+			s = (s + 1) & mask;
+		}
+		hashes[s] = hash;
+		tuples[s] = tuple;
+	}
+	
+	private void resize()
+	{
+		int[] oldHashes = hashes;
+		Tuple[] oldTuples = tuples;
+		allocate(oldTuples.length << 1);
+		for (int i = 0; i < oldTuples.length; i++) {
+			if (oldTuples[i] != null) {
+				insert(oldHashes[i], oldTuples[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the slot of the first entry with the given key, or -1.
+	 */
+	public int first(Atomic key)
+	{
+		int hash = hash(key);
+		return scan(key, hash, hash & mask);
+	}
+	
+	/**
+	 * Returns the slot of the entry with the given key following the given
+	 * slot, or -1.
+	 */
+	public int next(Atomic key, int slot)
+	{
+		return scan(key, hash(key), (slot + 1) & mask);
+	}
+	
+	private int scan(Atomic key, int hash, int s)
+	{
+		while (tuples[s] != null) {
+			if (hashes[s] == hash && matches(key, (Atomic) tuples[s].array()[keyIndex])) {
+				return s;
+			}
+			s = (s + 1) & mask;
+		}
+		return -1;
+	}
+	
+	private static boolean matches(Atomic key, Atomic other)
+	{
+		if (key == null || other == null) {
+			return key == other;
+		}
+		return key.atomicCmp(other) == 0;
+	}
+	
+	public Tuple get(int slot)
+	{
+		return tuples[slot];
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public int capacity()
+	{
+		return tuples.length;
+	}
+	
+	/**
+	 * Length of the longest probe chain, i.e., the maximum number of slots
+	 * inspected to find the end of a chain.
+	 */
+	public int maxChainLength()
+	{
+		int max = 0;
+		int run = 0;
+		// chains may wrap around the end of the arrays
+		for (int i = 0; i < tuples.length * 2; i++) {
+			if (tuples[i & mask] != null) {
+				run++;
+				if (run > max) max = run;
+			}
+			else {
+				run = 0;
+			}
+			if (i >= tuples.length && run == 0) {
+				break;
+			}
+		}
+		return Math.min(max, tuples.length);
+	}
+	
+	/**
+	 * Removes all entries but keeps the allocated capacity.
+	 */
+	public void clear()
+	{
+		Arrays.fill(tuples, null);
+		size = 0;
+	}
+	
+}
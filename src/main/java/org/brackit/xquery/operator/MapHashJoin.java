@@ -0,0 +1,165 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.operator;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.xquery.QueryContext;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.OperationNotSupportedException;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.TupleImpl;
+import org.brackit.xquery.xdm.atomic.Atomic;
+
+/**
+ * Map-side hash join of a fragment-replicate join. The (small) build input is
+ * read completely into a hash table, which is then probed with the tuples of
+ * the (large) probe input, i.e., the map input split. As in the reduce-side
+ * post join, the output tuples contain the left columns followed by the
+ * (shifted) right columns.
+ * 
+ */
+public class MapHashJoin implements Operator {
+
+	private static final Log LOG = LogFactory.getLog(MapHashJoin.class);
+	
+	private final int HASH_TABLE_SIZE;
+	
+	protected final Operator build;
+	protected final Operator probe;
+	protected final int buildKeyIndex;
+	protected final int probeKeyIndex;
+	protected final boolean buildLeft;
+	
+	public MapHashJoin(Operator build, int buildKeyIndex, Operator probe, int probeKeyIndex,
+			boolean buildLeft, Configuration conf)
+	{
+		this.build = build;
+		this.probe = probe;
+		this.buildKeyIndex = buildKeyIndex;
+		this.probeKeyIndex = probeKeyIndex;
+		this.buildLeft = buildLeft;
+		
+		HASH_TABLE_SIZE = conf.getInt(XQueryJobConf.PROP_HASH_TABLE_SIZE, 8192);
+	}
+	
+	protected JoinHashTable buildHashTable(QueryContext ctx, Tuple tuple) throws QueryException
+	{
+		JoinHashTable table = new JoinHashTable(buildKeyIndex, HASH_TABLE_SIZE);
+		Cursor in = build.create(ctx, tuple);
+		in.open(ctx);
+		
+		Tuple t;
+		while ((t = in.next(ctx)) != null) {
+			Atomic key = (Atomic) t.array()[buildKeyIndex];
+			if (key == null) {
+				// empty keys never match
+				continue;
+			}
+			table.put(key, t);
+		}
+		in.close(ctx);
+		
+		LOG.info(String.format("Built replicated hash table with %d slots and %d tuples", 
+				table.capacity(), table.size()));
+		return table;
+	}
+	
+	protected Tuple join(Tuple probeTuple, Tuple buildTuple) throws QueryException
+	{
+		Tuple left = buildLeft ? buildTuple : probeTuple;
+		Tuple right = buildLeft ? probeTuple : buildTuple;
+		Sequence[] result = Arrays.copyOf(right.array(), right.getSize());
+		for (int i = 0; i < left.getSize(); i++) {
+			result[i] = left.get(i);
+		}
+		return new TupleImpl(result);
+	}
+	
+	@Override
+	public Cursor create(QueryContext ctx, final Tuple tuple) throws QueryException
+	{
+		final JoinHashTable table = buildHashTable(ctx, tuple);
+		
+		return new Cursor() {
+			
+			Cursor in;
+			Tuple t;
+			Atomic key;
+			int slot = -1;
+			
+			@Override
+			public void open(QueryContext ctx) throws QueryException
+			{
+				in = probe.create(ctx, tuple);
+				in.open(ctx);
+			}
+			
+			@Override
+			public Tuple next(QueryContext ctx) throws QueryException
+			{
+				while (slot < 0) {
+					t = in.next(ctx);
+					if (t == null) {
+						return null;
+					}
+					key = (Atomic) t.array()[probeKeyIndex];
+					slot = (key != null) ? table.first(key) : -1;
+				}
+				Tuple match = table.get(slot);
+				slot = table.next(key, slot);
+				return join(t, match);
+			}
+			
+			@Override
+			public void close(QueryContext ctx)
+			{
+				in.close(ctx);
+			}
+		};
+	}
+	
+	@Override
+	public Cursor create(QueryContext ctx, Tuple[] t, int len) throws QueryException
+	{
+		throw new OperationNotSupportedException();
+	}
+
+	@Override
+	public int tupleWidth(int initSize)
+	{
+		// the right input yields full-width tuples
+		return (buildLeft ? probe : build).tupleWidth(initSize);
+	}
+
+}
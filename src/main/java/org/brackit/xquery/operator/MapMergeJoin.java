@@ -0,0 +1,243 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.operator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.brackit.hadoop.io.BrackitInputSplit;
+import org.brackit.hadoop.io.MergeJoinSplit;
+import org.brackit.hadoop.runtime.HadoopQueryContext;
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.xquery.ErrorCode;
+import org.brackit.xquery.QueryContext;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.OperationNotSupportedException;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.TupleImpl;
+import org.brackit.xquery.xdm.atomic.Atomic;
+
+/**
+ * Map-side merge join of two job outputs which are partitioned and sorted by
+ * the join key. Each map task reads the part files of one partition (see
+ * {@link MergeJoinSplit}) and merges them without a shuffle. As in the
+ * reduce-side post join, the tagged tuples of the right input contain the
+ * (empty) left columns, which are filled with the ones of the left tuple.
+ * 
+ */
+public class MapMergeJoin implements Operator {
+
+	private static final Log LOG = LogFactory.getLog(MapMergeJoin.class);
+	
+	protected final int leftKeyIndex;
+	protected final int rightKeyIndex;
+	private final int width;
+	private final Configuration conf;
+	
+	public MapMergeJoin(int leftKeyIndex, int rightKeyIndex, int width, Configuration conf)
+	{
+		this.leftKeyIndex = leftKeyIndex;
+		this.rightKeyIndex = rightKeyIndex;
+		this.width = width;
+		this.conf = conf;
+	}
+	
+	private class MergeJoinCursor implements Cursor {
+		
+		SortedInput left;
+		SortedInput right;
+		Tuple probe;
+		ArrayList<Tuple> matches = new ArrayList<Tuple>();
+		Atomic matchKey;
+		int pos;
+		int count;
+
+		public void open(QueryContext ctx) throws QueryException
+		{
+			InputSplit split = ((HadoopQueryContext) ctx).getMapContext().getInputSplit();
+			if (split instanceof BrackitInputSplit) {
+				split = ((BrackitInputSplit) split).getInputSplit();
+			}
+			if (!(split instanceof MergeJoinSplit)) {
+				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
+						"Merge join requires a merge join input split");
+			}
+			MergeJoinSplit mjs = (MergeJoinSplit) split;
+			try {
+				left = new SortedInput(mjs.getLeft(), leftKeyIndex);
+				right = new SortedInput(mjs.getRight(), rightKeyIndex);
+			}
+			catch (IOException e) {
+				throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+			}
+		}
+
+		public Tuple next(QueryContext ctx) throws QueryException
+		{
+			while (true) {
+				if (pos < matches.size()) {
+					count++;
+					return join(probe, matches.get(pos++));
+				}
+				if (left.current == null) {
+					return null;
+				}
+				Atomic key = left.key();
+				if (matches.isEmpty() || compare(key, matchKey) != 0) {
+					// find the run of right tuples with the key of the left tuple
+					matches.clear();
+					while (right.current != null && compare(right.key(), key) < 0) {
+						right.advance();
+					}
+					if (right.current == null) {
+						// no more matches
+						return null;
+					}
+					matchKey = key;
+					while (right.current != null && compare(right.key(), key) == 0) {
+						matches.add(right.current);
+						right.advance();
+					}
+				}
+				probe = left.current;
+				pos = 0;
+				left.advance();
+			}
+		}
+
+		public void close(QueryContext ctx)
+		{
+			LOG.info(String.format("Merge join produced %d tuples", count));
+			if (left != null) {
+				left.close();
+			}
+			if (right != null) {
+				right.close();
+			}
+		}
+	}
+	
+	/*
+	 * Tagged tuples of a sequence file, checked to be sorted by the join key
+	 */
+	private class SortedInput {
+		
+		final Path path;
+		final int keyIndex;
+		final SequenceFile.Reader reader;
+		Tuple current;
+		
+		SortedInput(Path path, int keyIndex) throws IOException, QueryException
+		{
+			this.path = path;
+			this.keyIndex = keyIndex;
+			FileSystem fs = path.getFileSystem(conf);
+			reader = new SequenceFile.Reader(fs, path, conf);
+			advance();
+		}
+		
+		Atomic key()
+		{
+			return (Atomic) current.array()[keyIndex];
+		}
+		
+		void advance() throws QueryException
+		{
+			Atomic prev = (current != null) ? key() : null;
+			boolean first = (current == null);
+			try {
+				XQGroupingKey key = (XQGroupingKey) reader.next((Object) null);
+				if (key == null) {
+					current = null;
+					return;
+				}
+				current = (Tuple) reader.getCurrentValue((Object) null);
+				key.rebuildTuple(current);
+			}
+			catch (IOException e) {
+				throw new QueryException(e, ErrorCode.BIT_DYN_ABORTED_ERROR);
+			}
+			if (!first && compare(key(), prev) < 0) {
+				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
+						"Merge join input " + path + " is not sorted by the join key");
+			}
+		}
+		
+		void close()
+		{
+			try {
+				reader.close();
+			}
+			catch (IOException e) {
+				LOG.warn("Could not close merge join input: " + e.getMessage());
+			}
+		}
+	}
+	
+	private static Tuple join(Tuple left, Tuple right)
+	{
+		// left columns precede the right ones, the tag is not copied
+		Sequence[] result = new Sequence[right.getSize() - 1];
+		System.arraycopy(right.array(), 0, result, 0, result.length);
+		System.arraycopy(left.array(), 0, result, 0, left.getSize() - 1);
+		return new TupleImpl(result);
+	}
+	
+	// same order as the shuffle sort: empty keys are equal and least
+	private static int compare(Atomic a, Atomic b)
+	{
+		if (a == null || b == null) {
+			return (a == null) ? ((b == null) ? 0 : -1) : 1;
+		}
+		return a.compareTo(b);
+	}
+
+	public Cursor create(QueryContext ctx, Tuple tuple) throws QueryException
+	{
+		return new MergeJoinCursor();
+	}
+
+	public Cursor create(QueryContext ctx, Tuple[] t, int len) throws QueryException
+	{
+		throw new OperationNotSupportedException();
+	}
+
+	public int tupleWidth(int initSize)
+	{
+		return width;
+	}
+
+}
@@ -27,9 +27,6 @@
  */
 package org.brackit.xquery.operator;
 
-import java.util.Arrays;
-import java.util.HashMap;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -37,84 +34,59 @@ import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.QueryContext;
 import org.brackit.xquery.QueryException;
 import org.brackit.xquery.xdm.OperationNotSupportedException;
+import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.TupleImpl;
 import org.brackit.xquery.xdm.atomic.Atomic;
 import org.brackit.xquery.xdm.atomic.Int32;
 
-public class HashPostJoin implements Operator {
+/**
+ * N-ary post join of a shuffle with inputs tagged 0..n-1 which share the join
+ * key. Within a hash partition, tuples arrive in descending tag order, so the
+ * tuples of tags n-1..1 are loaded into one hash table per tag and the tag 0
+ * tuples probe all of them. Each combination of matches yields an output
+ * tuple, in which input i contributes the columns between the widths of the
+ * tag i-1 and the tag i tuples.
+ * 
+ * Unlike the binary {@link ArrayHashPostJoin}, build inputs are not spilled.
+ * 
+ */
+public class MultiHashPostJoin implements Operator {
 
-	private static final Log LOG = LogFactory.getLog(HashPostJoin.class);
+	private static final Log LOG = LogFactory.getLog(MultiHashPostJoin.class);
 	
 	private final int HASH_TABLE_SIZE;
 	
 	protected Operator taggedInput;
-	protected int leftKeyIndex;
-	protected int rightKeyIndex;
-	protected HashMap<Atomic, Tuple[]> table;
+	protected int[] keyIndexes;
 	
-	public HashPostJoin(Operator input, int leftKeyIndex, int rightKeyIndex, Configuration conf)
+	public MultiHashPostJoin(Operator input, int[] keyIndexes, Configuration conf)
 	{
 		this.taggedInput = input;
-		this.leftKeyIndex = leftKeyIndex;
-		this.rightKeyIndex = rightKeyIndex;
+		this.keyIndexes = keyIndexes;
 		
 		HASH_TABLE_SIZE = conf.getInt(XQueryJobConf.PROP_HASH_TABLE_SIZE, 8192);
 	}
 	
-	protected void put(Atomic key, Tuple tuple)
-	{
-		Tuple[] bucket = table.get(key);
-		if (bucket == null) {
-			bucket = new Tuple[]{tuple};
-		}
-		else {
-			bucket = Arrays.copyOf(bucket, bucket.length + 1);
-			bucket[bucket.length - 1] = tuple;
-		}
-		table.put(key, bucket);
-	}
-	
-	protected Tuple buildHashTable(Tuple first, Cursor in, QueryContext ctx) throws QueryException
-	{
-		table = null;
-		table = new HashMap<Atomic, Tuple[]>(HASH_TABLE_SIZE);
-		
-		Tuple t = first != null ? first : in.next(ctx);
-		int count = 0;
-		while (t != null) {
-			int tag = ((Int32) t.array()[t.getSize() - 1]).v;
-			if (tag == 1) {
-				Tuple proj = t.project(0, t.getSize() - 1);
-				put((Atomic) proj.array()[rightKeyIndex], proj);				
-				t = in.next(ctx);
-				count++;
-			}
-			else {
-				break;
-			}
-		}
-		
-		LOG.info(String.format("Built hash table with %d tuples", count));
-		
-		return t;
-	}
-	
 	@Override
 	public Cursor create(QueryContext ctx, Tuple tuple) throws QueryException
 	{
-//		System.out.println("Starting HashPostJoin, left key = " + leftKeyIndex + ", right key = " + rightKeyIndex);
 		final Cursor in = taggedInput.create(ctx, tuple);
 		in.open(ctx);
 		
-		final Tuple first = buildHashTable(null, in, ctx);
+		final int n = keyIndexes.length;
+		final JoinHashTable[] tables = new JoinHashTable[n];
+		for (int i = 1; i < n; i++) {
+			tables[i] = new JoinHashTable(keyIndexes[i], HASH_TABLE_SIZE);
+		}
 		
 		return new Cursor() {
 			
-			Tuple t = first;
-			int width = first != null ? first.getSize() : 0;
-			Tuple[] matches = null;
-			int numMatches;
-			int m = 0;
+			int prevTag = 0;
+			Tuple probe;
+			Atomic probeKey;
+			int[] slots = new int[n];
+			boolean matching = false;
 			
 			@Override
 			public void open(QueryContext ctx) throws QueryException {
@@ -123,38 +95,82 @@ public class HashPostJoin implements Operator {
 			@Override
 			public Tuple next(QueryContext ctx) throws QueryException
 			{
-				// fetch next tuple from (left) input and probe hash table for matches
-				while (matches == null || m >= numMatches) {
+				while (!matching) {
+					Tuple t = in.next(ctx);
 					if (t == null) {
 						return null;
 					}
-					if (t.array()[t.array().length - 1].equals(Int32.ONE)) {
-						// it fetched tuple actually belongs to right input, rebuild hash table
-						t = buildHashTable(t, in, ctx);
-						if (t == null) {
-							return null;
-						}
-					}
-					t = t.project(0, width - 1);
-
-					Atomic lKey = (Atomic) t.array()[leftKeyIndex];
-					matches = table.get(lKey);
-					if (matches != null) {
-						for (Tuple match : matches) {
-							for (int i = 0; i < t.getSize(); i++) {
-								match.array()[i] = t.array()[i];
+					int tag = ((Int32) t.array()[t.getSize() - 1]).v;
+					if (tag > 0) {
+						if (prevTag == 0 || tag > prevTag) {
+							// tuple belongs to the next partition
+							for (int i = 1; i < n; i++) {
+								tables[i].clear();
 							}
 						}
-						numMatches = matches.length;
-						m = 0;
+						tables[tag].put((Atomic) t.array()[keyIndexes[tag]], t);
+						prevTag = tag;
+						continue;
+					}
+					if (prevTag != 0) {
+						LOG.info(String.format("Built %d hash tables, largest has %d tuples", n - 1, maxSize()));
+						prevTag = 0;
+					}
+					
+					probe = t;
+					probeKey = (Atomic) t.array()[keyIndexes[0]];
+					matching = true;
+					for (int i = 1; i < n && matching; i++) {
+						slots[i] = tables[i].first(probeKey);
+						matching = (slots[i] >= 0);
+					}
+				}
+				
+				Tuple result = combine();
+				
+				// advance to the next combination of matches
+				int i = n - 1;
+				while (i > 0) {
+					slots[i] = tables[i].next(probeKey, slots[i]);
+					if (slots[i] >= 0) {
+						break;
+					}
+					slots[i] = tables[i].first(probeKey);
+					i--;
+				}
+				matching = (i > 0);
+				
+				return result;
+			}
+			
+			private Tuple combine() throws QueryException
+			{
+				Tuple widest = tables[n - 1].get(slots[n - 1]);
+				Sequence[] columns = new Sequence[widest.getSize() - 1];
+				int from = 0;
+				for (int i = 0; i < n; i++) {
+					Tuple part = (i == 0) ? probe : tables[i].get(slots[i]);
+					int to = part.getSize() - 1;
+					for (int k = from; k < to; k++) {
+						columns[k] = part.array()[k];
 					}
-					t = in.next(ctx);
+					from = to;
 				}
-				return matches[m++];
+				return new TupleImpl(columns);
+			}
+			
+			private int maxSize()
+			{
+				int max = 0;
+				for (int i = 1; i < n; i++) {
+					max = Math.max(max, tables[i].size());
+				}
+				return max;
 			}
 			
 			@Override
 			public void close(QueryContext ctx) {
+				in.close(ctx);
 			}
 		};
 	}
@@ -171,7 +187,5 @@ public class HashPostJoin implements Operator {
 	{
 		return taggedInput.tupleWidth(initSize);
 	}
-	
-	
 
 }
@@ -1,12 +1,16 @@
 package org.brackit.xquery.operator;
 
+import java.util.Arrays;
+
 import org.apache.hadoop.mapreduce.ReduceContext;
 import org.brackit.hadoop.runtime.HadoopQueryContext;
 import org.brackit.hadoop.runtime.XQGroupingKey;
 import org.brackit.xquery.ErrorCode;
 import org.brackit.xquery.QueryContext;
 import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.Sequence;
 import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.TupleImpl;
 
 public class PhaseIn implements Operator {
 
@@ -32,8 +36,11 @@ public class PhaseIn implements Operator {
 				if (!context.nextKeyValue()) {
 					return null;
 				}
+				// key and value are refilled by the deserializers for the next
+				// record, so the tuple passed on gets its own column array
 				XQGroupingKey key = (XQGroupingKey) context.getCurrentKey();
-				Tuple value = (Tuple) context.getCurrentValue();
+				Sequence[] columns = ((Tuple) context.getCurrentValue()).array();
+				Tuple value = new TupleImpl(Arrays.copyOf(columns, columns.length));
 				key.rebuildTuple(value);
 				return value;
 			}
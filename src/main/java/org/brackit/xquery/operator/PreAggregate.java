@@ -0,0 +1,256 @@
+/*
+ * [New BSD License]
+ * Copyright (c) 2011-2013, Brackit Project Team <info@brackit.org>  
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Brackit Project Team nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.brackit.xquery.operator;
+
+import java.util.HashSet;
+
+import org.brackit.hadoop.runtime.XQGroupingKey;
+import org.brackit.xquery.ErrorCode;
+import org.brackit.xquery.QueryContext;
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.Item;
+import org.brackit.xquery.xdm.Iter;
+import org.brackit.xquery.xdm.Sequence;
+import org.brackit.xquery.xdm.Tuple;
+import org.brackit.xquery.xdm.atomic.Atomic;
+
+/**
+ * Memory-bounded in-mapper pre-aggregation. The local (map-side) group-by is
+ * evaluated on consecutive chunks of its input instead of the whole input
+ * split. A chunk ends as soon as it would contain more than a maximum number
+ * of distinct grouping keys or the free heap drops below a given fraction,
+ * in which case the partial aggregates of the chunk are flushed to the
+ * shuffle and the group-by is restarted on the remaining input.
+ * 
+ * The group-by operator must be translated with {@link #getChunkInput()} as
+ * its input operator, while the actual input is set with
+ * {@link #setInput(Operator)}.
+ * 
+ */
+public class PreAggregate implements Operator {
+
+	private static final int MEMORY_CHECK_INTERVAL = 1024;
+	
+	private final int[] keyIndexes;
+	private final int maxGroups;
+	private final double minFreeMemory;
+	private final ChunkInput chunkInput = new ChunkInput();
+	private Operator in;
+	private Operator groupBy;
+	
+	// the cursor currently feeding the chunk input
+	private PreAggregateCursor current;
+	
+	public PreAggregate(int[] keyIndexes, int maxGroups, double minFreeMemory)
+	{
+		this.keyIndexes = keyIndexes;
+		this.maxGroups = maxGroups;
+		this.minFreeMemory = minFreeMemory;
+	}
+	
+	public Operator getChunkInput()
+	{
+		return chunkInput;
+	}
+	
+	public void setInput(Operator in)
+	{
+		this.in = in;
+	}
+	
+	public void setGroupBy(Operator groupBy)
+	{
+		this.groupBy = groupBy;
+	}
+	
+	private class PreAggregateCursor implements Cursor {
+		
+		private final Tuple[] buf;
+		private final int len;
+		private final HashSet<XQGroupingKey> groups = new HashSet<XQGroupingKey>();
+		private Cursor source;
+		private Cursor chunk;
+		private Tuple pending;
+		private boolean exhausted;
+		
+		PreAggregateCursor(Tuple[] buf, int len)
+		{
+			this.buf = buf;
+			this.len = len;
+		}
+		
+		private Cursor create(QueryContext ctx, Operator op) throws QueryException
+		{
+			return (len == 1) ? op.create(ctx, buf[0]) : op.create(ctx, buf, len);
+		}
+
+		public void open(QueryContext ctx) throws QueryException
+		{
+			current = this;
+			source = create(ctx, in);
+			source.open(ctx);
+			nextChunk(ctx);
+		}
+		
+		private void nextChunk(QueryContext ctx) throws QueryException
+		{
+			groups.clear();
+			chunk = create(ctx, groupBy);
+			chunk.open(ctx);
+		}
+
+		public Tuple next(QueryContext ctx) throws QueryException
+		{
+			Tuple t;
+			while ((t = chunk.next(ctx)) == null) {
+				chunk.close(ctx);
+				if (exhausted) {
+					chunk = null;
+					return null;
+				}
+				nextChunk(ctx);
+			}
+			return t;
+		}
+		
+		Tuple nextInput(QueryContext ctx) throws QueryException
+		{
+			Tuple t = pending;
+			if (t != null) {
+				pending = null;
+			}
+			else {
+				t = source.next(ctx);
+				if (t == null) {
+					exhausted = true;
+					return null;
+				}
+			}
+			
+			XQGroupingKey key = new XQGroupingKey(keyOf(t), keyIndexes);
+			if (!groups.contains(key)) {
+				if (groups.size() >= maxGroups || 
+						(groups.size() % MEMORY_CHECK_INTERVAL == 0 && lowMemory())) {
+					// end of chunk: flush partial aggregates and restart with this tuple
+					if (groups.size() > 0) {
+						pending = t;
+						return null;
+					}
+				}
+				groups.add(key);
+			}
+			return t;
+		}
+		
+		private Atomic[] keyOf(Tuple t) throws QueryException
+		{
+			Atomic[] keys = new Atomic[keyIndexes.length];
+			for (int i = 0; i < keyIndexes.length; i++) {
+				Sequence seq = t.get(keyIndexes[i]);
+				if (seq == null) {
+					continue;
+				}
+				Iter iter = seq.iterate();
+				Item item = iter.next();
+				iter.close();
+				keys[i] = (item != null) ? item.atomize() : null;
+			}
+			return keys;
+		}
+
+		public void close(QueryContext ctx)
+		{
+			if (chunk != null) {
+				chunk.close(ctx);
+			}
+			source.close(ctx);
+			if (current == this) {
+				current = null;
+			}
+		}
+	}
+	
+	private boolean lowMemory()
+	{
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		return free < rt.maxMemory() * minFreeMemory;
+	}
+	
+	private class ChunkInput implements Operator {
+
+		public Cursor create(QueryContext ctx, Tuple tuple) throws QueryException
+		{
+			if (current == null) {
+				throw new QueryException(ErrorCode.BIT_DYN_ABORTED_ERROR,
+						"Chunk input must be opened by its pre-aggregation");
+			}
+			final PreAggregateCursor cursor = current;
+			return new Cursor() {
+				public void open(QueryContext ctx) throws QueryException
+				{
+				}
+
+				public Tuple next(QueryContext ctx) throws QueryException
+				{
+					return cursor.nextInput(ctx);
+				}
+
+				public void close(QueryContext ctx)
+				{
+				}
+			};
+		}
+
+		public Cursor create(QueryContext ctx, Tuple[] buf, int len) throws QueryException
+		{
+			return create(ctx, (Tuple) null);
+		}
+
+		public int tupleWidth(int initSize)
+		{
+			return in.tupleWidth(initSize);
+		}
+	}
+	
+	public Cursor create(QueryContext ctx, Tuple tuple) throws QueryException
+	{
+		return new PreAggregateCursor(new Tuple[] { tuple }, 1);
+	}
+
+	public Cursor create(QueryContext ctx, Tuple[] buf, int len) throws QueryException
+	{
+		return new PreAggregateCursor(buf, len);
+	}
+
+	public int tupleWidth(int initSize)
+	{
+		return groupBy.tupleWidth(initSize);
+	}
+
+}
@@ -3,8 +3,17 @@ package org.brackit.hadoop;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.brackit.hadoop.job.XQueryJobConf;
 import org.brackit.xquery.QueryException;
 import org.brackit.xquery.XQuery;
 import org.brackit.xquery.compiler.CompileChain;
@@ -55,7 +64,11 @@ public class HadoopTest {
 	
 	protected final static Configuration CONF = new Configuration();
 	
+	protected final static String OUTPUT = Cfg.asString(XQueryJobConf.PROP_OUTPUT_DIR, "") + "BrackitMRJob";
+	
 	static {
+		// run all tests through Hadoop rather than the in-process executor
+		CONF.set(XQueryJobConf.PROP_LOCAL_MODE, "false");
 		// NOTE: run: "mvn -DskipTests install" on the brackitmr folder (Linux only)
 		if (!IS_LOCAL) {
 			CONF.set("mapred.jar", System.getProperty("user.home") +
@@ -75,6 +88,43 @@ public class HadoopTest {
 		XQuery.DEBUG_DIR = old;
 	}
 	
+	/*
+	 * Evaluates the query and returns the sorted lines of its output files
+	 */
+	protected static List<String> outputLines(String query, Configuration conf) throws QueryException
+	{
+		try {
+			Path output = new Path(OUTPUT);
+			FileSystem fs = output.getFileSystem(conf);
+			fs.delete(output, true);
+			
+			XQuery xq = new XQuery(new MRCompileChain(conf), query);
+			xq.evaluate(new QueryContextImpl());
+			
+			List<String> lines = new ArrayList<String>();
+			for (FileStatus file : fs.listStatus(output)) {
+				if (!file.getPath().getName().startsWith("part-")) {
+					continue;
+				}
+				BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file.getPath()), "UTF-8"));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						lines.add(line);
+					}
+				}
+				finally {
+					reader.close();
+				}
+			}
+			Collections.sort(lines);
+			return lines;
+		}
+		catch (IOException e) {
+			throw new DocumentException(e);
+		}
+	}
+	
 	protected void runBrackit(String query) throws QueryException
 	{
 		XQuery xq = new XQuery(new CompileChain(), query);
@@ -203,6 +253,20 @@ public class HadoopTest {
 				"return { o: $o=>orderkey, l: $l=>linenumber }");
 	}
 	
+	@Test
+	public void multiWayJoin() throws QueryException
+	{
+		run(PROLOG + 
+				"for $o in collection('orders') " +
+				"for $l1 in collection('lineitem') " +
+				"for $l2 in collection('lineitem') " +
+				"where $o=>orderkey eq $l1=>orderkey " +
+				"  and $l1=>orderkey eq $l2=>orderkey " +
+				"  and $l1=>linenumber eq 1 " +
+				"  and $l2=>linenumber eq 2 " +
+				"return { o: $o=>orderkey, l1: $l1=>partkey, l2: $l2=>partkey }");
+	}
+	
 	
 	@Test
 	public void joinGroupBy() throws QueryException
@@ -230,6 +294,24 @@ public class HadoopTest {
 				"return { order: $orderkey, avg_price: $avg }");
 	}
 	
+	@Test
+	public void groupByJoin() throws QueryException
+	{
+		run(PROLOG +
+				"for $a in (" +
+				"  for $l in collection('lineitem') " +
+				"  let $orderkey := $l=>orderkey " +
+				"  group by $orderkey " +
+				"  return { orderkey: $orderkey, items: count($l) }) " +
+				"for $b in (" +
+				"  for $o in collection('orders') " +
+				"  let $orderkey := $o=>orderkey " +
+				"  group by $orderkey " +
+				"  return { orderkey: $orderkey, price: sum($o=>totalprice) }) " +
+				"where $a=>orderkey eq $b=>orderkey " +
+				"return { order: $a=>orderkey, items: $a=>items, price: $b=>price }");
+	}
+	
 	@Test
 	public void groupByOrderByDecimal() throws QueryException
 	{
@@ -0,0 +1,47 @@
+package org.brackit.hadoop;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.xquery.QueryException;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Runs the queries of {@link HadoopTest} through Hadoop and through the
+ * in-process {@link org.brackit.hadoop.job.LocalExecutor} and compares the
+ * output lines of both runs (in sorted order, since the order of the output
+ * files differs).
+ */
+public class LocalModeTest extends HadoopTest {
+
+	@Override
+	protected void run(String query) throws QueryException
+	{
+		List<String> expected = outputLines(query, CONF);
+		
+		Configuration local = new Configuration(CONF);
+		local.set(XQueryJobConf.PROP_LOCAL_MODE, "true");
+		List<String> actual = outputLines(query, local);
+		
+		assertEquals(expected, actual);
+	}
+	
+	@Override
+	@Ignore("random input")
+	@Test
+	public void globalAggPi() throws QueryException
+	{
+	}
+	
+	@Override
+	@Ignore("does not use Hadoop")
+	@Test
+	public void rangeExpr() throws QueryException
+	{
+	}
+	
+}
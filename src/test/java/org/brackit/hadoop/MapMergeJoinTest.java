@@ -0,0 +1,66 @@
+package org.brackit.hadoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.brackit.hadoop.job.XQueryJobConf;
+import org.brackit.xquery.QueryException;
+import org.junit.Test;
+
+/**
+ * Joins the outputs of two group-bys on their grouping key, which are
+ * co-partitioned and sorted, once with a map-side merge join and once with a
+ * shuffle join, and compares the output lines of both runs.
+ */
+public class MapMergeJoinTest {
+
+	private final static String QUERY = HadoopTest.PROLOG +
+			"for $a in (" +
+			"  for $l in collection('lineitem') " +
+			"  let $orderkey := $l=>orderkey " +
+			"  group by $orderkey " +
+			"  return { orderkey: $orderkey, items: count($l) }) " +
+			"for $b in (" +
+			"  for $o in collection('orders') " +
+			"  let $orderkey := $o=>orderkey " +
+			"  group by $orderkey " +
+			"  return { orderkey: $orderkey, price: sum($o=>totalprice) }) " +
+			"where $a=>orderkey eq $b=>orderkey " +
+			"return { order: $a=>orderkey, items: $a=>items, price: $b=>price }";
+	
+	@Test
+	public void groupByJoin() throws QueryException, IOException
+	{
+		Configuration shuffle = new Configuration(HadoopTest.CONF);
+		shuffle.setBoolean(XQueryJobConf.PROP_MAP_MERGE_JOIN, false);
+		List<String> expected = HadoopTest.outputLines(QUERY, shuffle);
+		assertFalse(hasMapOutput(shuffle));
+	
+		Configuration merge = new Configuration(HadoopTest.CONF);
+		merge.setBoolean(XQueryJobConf.PROP_MAP_MERGE_JOIN, true);
+		List<String> actual = HadoopTest.outputLines(QUERY, merge);
+		// the join job is map-only
+		assertTrue(hasMapOutput(merge));
+	
+		assertEquals(expected, actual);
+	}
+	
+	private boolean hasMapOutput(Configuration conf) throws IOException
+	{
+		Path output = new Path(HadoopTest.OUTPUT);
+		for (FileStatus file : output.getFileSystem(conf).listStatus(output)) {
+			if (file.getPath().getName().startsWith("part-m-")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
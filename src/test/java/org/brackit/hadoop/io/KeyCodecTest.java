@@ -0,0 +1,326 @@
+package org.brackit.hadoop.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.brackit.xquery.QueryException;
+import org.brackit.xquery.xdm.Type;
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.DTD;
+import org.brackit.xquery.xdm.atomic.Date;
+import org.brackit.xquery.xdm.atomic.Dbl;
+import org.brackit.xquery.xdm.atomic.Dec;
+import org.brackit.xquery.xdm.atomic.Int;
+import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Int64;
+import org.brackit.xquery.xdm.atomic.Numeric;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.atomic.Una;
+import org.junit.Test;
+
+/**
+ * Checks that encoded keys compare as raw bytes exactly like their values,
+ * in ascending and descending (inverted) order, and decode to the same
+ * values.
+ */
+public class KeyCodecTest {
+
+	private static final String[] STRINGS = {
+		"", "\u0000", "\u0000a", "a", "a\u0000", "a\u0000b", "ab", "b", "\u00e9", "\uffff", "\ud83d\ude00"
+	};
+
+	@Test
+	public void integerOrder() throws Exception
+	{
+		TreeSet<Long> values = new TreeSet<Long>(Arrays.asList(Long.MIN_VALUE, Long.MIN_VALUE + 1,
+				(long) Integer.MIN_VALUE - 1, (long) Integer.MIN_VALUE, -65537L, -65536L, -256L, -255L,
+				-129L, -128L, -1L, 0L, 1L, 127L, 128L, 255L, 256L, 65535L, 65536L, (long) Integer.MAX_VALUE,
+				(long) Integer.MAX_VALUE + 1, Long.MAX_VALUE - 1, Long.MAX_VALUE));
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			values.add(random.nextLong() >> random.nextInt(64));
+		}
+
+		List<Atomic> keys = new ArrayList<Atomic>();
+		for (long v : values) {
+			keys.add((v == (int) v) ? new Int32((int) v) : new Int64(v));
+		}
+		checkOrder(keys, Type.INR, null);
+		for (Atomic key : keys) {
+			long v = ((Numeric) key).longValue();
+			assertEquals(v, ((Numeric) roundTrip(key, Type.INR, false, null)).longValue());
+			assertEquals(v, ((Numeric) roundTrip(key, Type.INR, true, null)).longValue());
+		}
+	}
+
+	@Test
+	public void integerLength() throws Exception
+	{
+		// marker and length byte, followed by the significant bytes only
+		assertEquals(2, encode(new Int32(0), Type.INR, false, null).length);
+		assertEquals(2, encode(new Int32(-1), Type.INR, false, null).length);
+		assertEquals(3, encode(new Int32(100), Type.INR, false, null).length);
+		assertEquals(3, encode(new Int32(-128), Type.INR, false, null).length);
+		assertEquals(10, encode(new Int64(Long.MAX_VALUE), Type.INR, false, null).length);
+		assertEquals(10, encode(new Int64(Long.MIN_VALUE), Type.INR, false, null).length);
+	}
+
+	@Test
+	public void bigIntegerOrder() throws Exception
+	{
+		BigInteger two = BigInteger.valueOf(2);
+		BigInteger longMin = BigInteger.valueOf(Long.MIN_VALUE);
+		BigInteger longMax = BigInteger.valueOf(Long.MAX_VALUE);
+		// up to 126 significant bytes with a single length byte, then escaped
+		BigInteger[] values = { two.pow(1100).negate(), two.pow(1008).negate(), two.pow(1000).negate(),
+				longMin.subtract(BigInteger.ONE), longMin, BigInteger.ONE.negate(), BigInteger.ZERO,
+				BigInteger.TEN, longMax, longMax.add(BigInteger.ONE), two.pow(200), two.pow(1008).subtract(BigInteger.ONE),
+				two.pow(1008), two.pow(1100) };
+		List<Atomic> keys = new ArrayList<Atomic>();
+		for (BigInteger v : values) {
+			keys.add(new Int(new BigDecimal(v)));
+		}
+		checkOrder(keys, Type.INR, null);
+		for (Atomic key : keys) {
+			BigDecimal v = ((Numeric) key).decimalValue();
+			assertEquals(0, v.compareTo(((Numeric) roundTrip(key, Type.INR, false, null)).decimalValue()));
+			assertEquals(0, v.compareTo(((Numeric) roundTrip(key, Type.INR, true, null)).decimalValue()));
+		}
+		
+		// integers of all classes are encoded alike
+		assertArrayEquals(encode(new Int32(-5), Type.INR, false, null),
+				encode(new Int(BigDecimal.valueOf(-5)), Type.INR, false, null));
+		assertArrayEquals(encode(new Int64(Long.MAX_VALUE), Type.INR, false, null),
+				encode(new Int(new BigDecimal(longMax)), Type.INR, false, null));
+	}
+
+	@Test
+	public void decimalOrder() throws Exception
+	{
+		String[] values = { "-123456789.123456789", "-1000.5", "-1", "-0.001", "0", "0.001", "0.5", "1",
+				"1.5", "10", "123456789.123456789" };
+		List<Atomic> keys = new ArrayList<Atomic>();
+		for (String v : values) {
+			keys.add(new Dec(new BigDecimal(v)));
+		}
+		checkOrder(keys, Type.DEC, null);
+		for (Atomic key : keys) {
+			BigDecimal v = ((Numeric) key).decimalValue();
+			assertEquals(0, v.compareTo(((Numeric) roundTrip(key, Type.DEC, false, null)).decimalValue()));
+			assertEquals(0, v.compareTo(((Numeric) roundTrip(key, Type.DEC, true, null)).decimalValue()));
+		}
+	}
+
+	@Test
+	public void doubleOrder() throws Exception
+	{
+		double[] values = { Double.NEGATIVE_INFINITY, -1e300, -1.5, -Double.MIN_VALUE, 0.0,
+				Double.MIN_VALUE, 1.0, 1e300, Double.POSITIVE_INFINITY };
+		List<Atomic> keys = new ArrayList<Atomic>();
+		for (double v : values) {
+			keys.add(new Dbl(v));
+		}
+		checkOrder(keys, Type.DBL, null);
+		for (Atomic key : keys) {
+			double v = ((Dbl) key).v;
+			assertEquals(v, ((Numeric) roundTrip(key, Type.DBL, false, null)).doubleValue(), 0.0);
+			assertEquals(v, ((Numeric) roundTrip(key, Type.DBL, true, null)).doubleValue(), 0.0);
+		}
+	}
+
+	@Test
+	public void stringOrder() throws Exception
+	{
+		List<Atomic> keys = strings(STRINGS);
+		checkOrder(keys, Type.STR, null);
+		checkStrings(keys, null);
+		
+		// untyped atomics in a string column are encoded like strings
+		for (String v : STRINGS) {
+			assertArrayEquals(encode(new Str(v), Type.STR, false, null), encode(new Una(v), Type.STR, false, null));
+		}
+	}
+
+	@Test
+	public void dictionaryOrder() throws Exception
+	{
+		StringDictionary dict = new StringDictionary(new String[] { "SHIP", "AIR", "MAIL", "\u00e9" });
+
+		// entries and non-entries before, between and after them
+		List<Atomic> keys = strings("", "A", "AIR", "AIRX", "B", "MAIL", "MAILS", "N", "SHIP", "TRUCK",
+				"\u00e9", "\uffff", "\ud83d\ude00");
+		checkOrder(keys, Type.STR, dict);
+		checkStrings(keys, dict);
+
+		// entries are written as marker and code byte only
+		assertEquals(2, encode(new Str("AIR"), Type.STR, false, dict).length);
+		assertEquals(1, encode(new Str("AIR"), Type.STR, false, dict)[1]);
+		assertEquals(0, encode(new Str("A"), Type.STR, false, dict)[1]);
+		assertArrayEquals(encode(new Str("AIR"), Type.STR, false, dict), encode(new Una("AIR"), Type.STR, false, dict));
+	}
+
+	@Test
+	public void fullDictionaryOrder() throws Exception
+	{
+		String[] entries = new String[StringDictionary.MAX_SIZE];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = String.format("k%03d", i);
+		}
+		StringDictionary dict = new StringDictionary(entries);
+
+		List<String> values = new ArrayList<String>();
+		values.add("");
+		values.add("k");
+		for (String entry : entries) {
+			values.add(entry);
+			values.add(entry + "5");
+		}
+		values.add("z");
+		List<Atomic> keys = strings(values.toArray(new String[values.size()]));
+		checkOrder(keys, Type.STR, dict);
+		checkStrings(keys, dict);
+
+		// largest codes: last entry and strings ordered after it
+		assertEquals(253, encode(new Str(entries[entries.length - 1]), Type.STR, false, dict)[1] & 0xFF);
+		assertEquals(254, encode(new Str("z"), Type.STR, false, dict)[1] & 0xFF);
+	}
+
+	@Test
+	public void dateOrder() throws Exception
+	{
+		// dates compare by the instant at which they start
+		List<Atomic> keys = new ArrayList<Atomic>();
+		keys.add(date(1600, 2, 29, null));
+		keys.add(date(1969, 12, 31, null));
+		keys.add(date(2019, 12, 31, null));
+		keys.add(date(2020, 1, 1, timezone(14, 0)));
+		keys.add(date(2020, 1, 1, timezone(5, 0)));
+		keys.add(date(2020, 1, 1, null));
+		keys.add(date(2020, 1, 1, timezone(-5, -30)));
+		keys.add(date(2020, 1, 2, timezone(14, 0)));
+		keys.add(date(2020, 1, 1, timezone(-14, 0)));
+		keys.add(date(2020, 1, 2, null));
+		checkOrder(keys, Type.DATE, null);
+		for (Atomic key : keys) {
+			byte[] bytes = encode(key, Type.DATE, false, null);
+			assertArrayEquals(bytes, encode(roundTrip(key, Type.DATE, false, null), Type.DATE, false, null));
+			assertArrayEquals(bytes, encode(roundTrip(key, Type.DATE, true, null), Type.DATE, false, null));
+		}
+		
+		// equal instants in different timezones are equal keys
+		assertArrayEquals(encode(date(2020, 1, 2, timezone(14, 0)), Type.DATE, false, null),
+				encode(date(2020, 1, 1, timezone(-10, 0)), Type.DATE, false, null));
+		assertArrayEquals(encode(date(2020, 1, 1, timezone(0, 0)), Type.DATE, false, null),
+				encode(date(2020, 1, 1, null), Type.DATE, false, null));
+	}
+
+	@Test
+	public void emptyOrder() throws Exception
+	{
+		byte[] least = encode(null, Type.INR, false, null);
+		byte[] greatest = encodeEmptyGreatest();
+		byte[] min = encode(new Int64(Long.MIN_VALUE), Type.INR, false, null);
+		byte[] max = encode(new Int64(Long.MAX_VALUE), Type.INR, false, null);
+		assertTrue(compare(least, min) < 0);
+		assertTrue(compare(max, greatest) < 0);
+	}
+
+	private static List<Atomic> strings(String ... values)
+	{
+		List<Atomic> keys = new ArrayList<Atomic>();
+		for (String v : values) {
+			keys.add(new Str(v));
+		}
+		return keys;
+	}
+
+	private static Date date(int year, int month, int day, DTD timezone)
+	{
+		return new Date((short) year, (byte) month, (byte) day, timezone);
+	}
+	
+	private static DTD timezone(int hours, int minutes)
+	{
+		boolean negative = (hours < 0 || minutes < 0);
+		return new DTD(negative, 0, (byte) Math.abs(hours), (byte) Math.abs(minutes), 0);
+	}
+
+	private static void checkStrings(List<Atomic> keys, StringDictionary dict) throws Exception
+	{
+		for (Atomic key : keys) {
+			String v = ((Str) key).str;
+			assertEquals(v, ((Str) roundTrip(key, Type.STR, false, dict)).str);
+			assertEquals(v, ((Str) roundTrip(key, Type.STR, true, dict)).str);
+		}
+	}
+
+	/*
+	 * The keys must be given in ascending order of their values
+	 */
+	private static void checkOrder(List<Atomic> keys, Type type, StringDictionary dict) throws Exception
+	{
+		for (int i = 1; i < keys.size(); i++) {
+			Atomic a = keys.get(i - 1);
+			Atomic b = keys.get(i);
+			assertTrue(a + " < " + b, compare(encode(a, type, false, dict), encode(b, type, false, dict)) < 0);
+			assertTrue(a + " > " + b, compare(encode(a, type, true, dict), encode(b, type, true, dict)) > 0);
+		}
+	}
+
+	private static byte[] encode(Atomic key, Type type, boolean descending, StringDictionary dict)
+			throws IOException, QueryException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(descending ? KeyCodec.invert(buffer) : buffer);
+		KeyCodec.encode(out, key, type, true, dict);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private static byte[] encodeEmptyGreatest() throws IOException, QueryException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		KeyCodec.encode(out, null, Type.INR, false);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private static Atomic roundTrip(Atomic key, Type type, boolean descending, StringDictionary dict)
+			throws IOException, QueryException
+	{
+		byte[] bytes = encode(key, type, descending, dict);
+		ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+		DataInputStream in = new DataInputStream(descending ? KeyCodec.invert(buffer) : buffer);
+		Atomic decoded = KeyCodec.decode(in, type, dict);
+		assertEquals(-1, in.read());
+		return decoded;
+	}
+
+	private static int compare(byte[] a, byte[] b)
+	{
+		int len = Math.min(a.length, b.length);
+		for (int i = 0; i < len; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+}
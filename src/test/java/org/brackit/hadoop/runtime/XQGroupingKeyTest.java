@@ -0,0 +1,50 @@
+package org.brackit.hadoop.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+
+import org.brackit.xquery.xdm.atomic.Atomic;
+import org.brackit.xquery.xdm.atomic.Dbl;
+import org.brackit.xquery.xdm.atomic.Dec;
+import org.brackit.xquery.xdm.atomic.Int;
+import org.brackit.xquery.xdm.atomic.Int32;
+import org.brackit.xquery.xdm.atomic.Int64;
+import org.brackit.xquery.xdm.atomic.Str;
+import org.brackit.xquery.xdm.atomic.Una;
+import org.junit.Test;
+
+/**
+ * Checks that keys which compare equal have equal hash codes, which the
+ * partitioners and the join hash tables rely on.
+ */
+public class XQGroupingKeyTest {
+
+	@Test
+	public void numericHashCode() throws Exception
+	{
+		checkHashCode(new Int32(1), new Int64(1), new Int(BigDecimal.ONE), new Dec(new BigDecimal("1.0")),
+				new Dbl(1.0));
+		checkHashCode(new Int32(-7), new Int64(-7), new Dec(new BigDecimal("-7.000")), new Dbl(-7.0));
+		checkHashCode(new Dec(new BigDecimal("0.5")), new Dbl(0.5));
+		checkHashCode(new Int32(0), new Dbl(-0.0));
+		checkHashCode(new Int64(Long.MAX_VALUE), new Int(BigDecimal.valueOf(Long.MAX_VALUE)));
+	}
+	
+	@Test
+	public void stringHashCode() throws Exception
+	{
+		checkHashCode(new Str("abc"), new Una("abc"));
+		checkHashCode(new Str(""), new Una(""));
+	}
+	
+	private static void checkHashCode(Atomic ... keys) throws Exception
+	{
+		int hash = new XQGroupingKey(new Atomic[] { keys[0] }, null).hashCode();
+		for (Atomic key : keys) {
+			assertEquals(key.toString(), XQGroupingKey.hashCode(keys[0]), XQGroupingKey.hashCode(key));
+			assertEquals(hash, new XQGroupingKey(new Atomic[] { key }, null).hashCode());
+		}
+	}
+	
+}